@@ -0,0 +1,577 @@
+package plugins.RestFreenet;
+
+import freenet.client.ClientMetadata;
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.InsertBlock;
+import freenet.client.InsertContext;
+import freenet.client.InsertException;
+import freenet.client.async.ClientContext;
+import freenet.client.async.ClientPutCallback;
+import freenet.client.async.ClientPutter;
+import freenet.client.async.USKCallback;
+import freenet.client.events.SimpleEventProducer;
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.FreenetURI;
+import freenet.keys.USK;
+import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.support.Executor;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucket;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-process stand-in for the node services used by RestToadlet.
+ * Inserts finish through their ClientPutCallback after a configurable delay and failure rate,
+ * and their ClientPutter reports a cancel back to the callback on the cancelling thread like fred's,
+ * fetches return random data and the Indynet and WSFreenet plugins are answered by a fake FCP peer
+ * that can also leave messages unanswered.
+ * Subscribed USKs get a new edition at a fixed interval, the first one after the fetch delay.
+ * The fred interfaces are implemented with dynamic proxies, so methods the Toadlet does not use
+ * return default values and the harness keeps working as the fred API grows.
+ * Buckets created for inserted data are counted so leaks can be reported.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class FakeNode {
+    static final String THREAD_PREFIX = "FakeNode ";
+
+    private final long insertDelay; //Milliseconds before an insert finishes
+    private final double insertFailureRate;
+    private final long fetchDelay; //Milliseconds a fetch blocks
+    private final int fetchSize;
+    private final long fcpDelay; //Milliseconds before the fake plugins reply
+    private final double fcpFailureRate;
+    private final double fcpDropRate; //The fraction of plugin calls never answered
+    private final long uskEditionInterval; //Milliseconds between the editions of a subscribed USK
+    private final ThreadPoolExecutor pool;
+    private final ScheduledThreadPoolExecutor scheduler;
+    private final AtomicLong bucketsCreated;
+    private final AtomicLong bucketsFreed;
+    private final AtomicInteger insertsRunning;
+    private final AtomicInteger insertsCancelled;
+    private final NodeServices services;
+
+    /**
+     * Constructor
+     *
+     * @param insertDelay long : Milliseconds before an insert finishes
+     * @param insertFailureRate double : The fraction of inserts that fail
+     * @param fetchDelay long : Milliseconds a fetch blocks
+     * @param fetchSize int : The size of the fetched data
+     * @param fcpDelay long : Milliseconds before the fake plugins reply
+     * @param fcpFailureRate double : The fraction of plugin calls answered with an error
+     * @param fcpDropRate double : The fraction of plugin calls never answered
+     * @param uskEditionInterval long : Milliseconds between the editions of a subscribed USK
+     */
+    public FakeNode(long insertDelay, double insertFailureRate, long fetchDelay, int fetchSize, long fcpDelay, double fcpFailureRate, double fcpDropRate,
+            long uskEditionInterval){
+        this.insertDelay = insertDelay;
+        this.insertFailureRate = insertFailureRate;
+        this.fetchDelay = fetchDelay;
+        this.fetchSize = fetchSize;
+        this.fcpDelay = fcpDelay;
+        this.fcpFailureRate = fcpFailureRate;
+        this.fcpDropRate = fcpDropRate;
+        this.uskEditionInterval = uskEditionInterval;
+        this.bucketsCreated = new AtomicLong();
+        this.bucketsFreed = new AtomicLong();
+        this.insertsRunning = new AtomicInteger();
+        this.insertsCancelled = new AtomicInteger();
+        int cores = Runtime.getRuntime().availableProcessors();
+        this.pool = new ThreadPoolExecutor(cores, cores, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), threadFactory("executor"));
+        this.scheduler = new ScheduledThreadPoolExecutor(Math.max(2, cores / 2), threadFactory("ticker"));
+        this.scheduler.setRemoveOnCancelPolicy(true);
+        final Executor executor = proxy(Executor.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("execute")){
+                    pool.execute((Runnable)args[0]);
+                    return null;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        Ticker ticker = proxy(Ticker.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().startsWith("queueTimedJob")){
+                    Runnable job = (Runnable)args[0];
+                    long offset = 0;
+                    for (Object arg : args){
+                        if (arg instanceof Long){
+                            offset = (Long)arg;
+                        }
+                    }
+                    if (method.getName().equals("queueTimedJobAbsolute")){
+                        offset -= System.currentTimeMillis();
+                    }
+                    scheduler.schedule(job, Math.max(0, offset), TimeUnit.MILLISECONDS);
+                    return null;
+                }
+                if (method.getName().equals("getExecutor")){
+                    return executor;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+        this.services = new NodeServices(createClient(), executor, ticker, new DummyRandomSource(1234),
+                createBucketFactory(), null, createPluginConnector(), createUSKTracker());
+    }
+
+    /**
+     * Returns the services to construct the Toadlet with
+     *
+     * @return NodeServices
+     */
+    public NodeServices getServices(){
+        return services;
+    }
+
+    /**
+     * Returns the number of buckets created for inserted data and not freed
+     *
+     * @return long
+     */
+    public long getLiveBuckets(){
+        return bucketsCreated.get() - bucketsFreed.get();
+    }
+
+    /**
+     * Returns the number of buckets created for inserted data
+     *
+     * @return long
+     */
+    public long getBucketsCreated(){
+        return bucketsCreated.get();
+    }
+
+    /**
+     * Returns the number of inserts that have not finished yet
+     *
+     * @return int
+     */
+    public int getInsertsRunning(){
+        return insertsRunning.get();
+    }
+
+    /**
+     * Returns the number of inserts cancelled through their ClientPutter
+     *
+     * @return int
+     */
+    public int getInsertsCancelled(){
+        return insertsCancelled.get();
+    }
+
+    /**
+     * Stops the threads of the fake node
+     *
+     * @param timeout long : Milliseconds to wait for the running jobs
+     * @throws InterruptedException
+     */
+    public void shutdown(long timeout) throws InterruptedException{
+        scheduler.shutdownNow();
+        pool.shutdown();
+        awaitTermination(pool, timeout);
+        awaitTermination(scheduler, timeout);
+    }
+
+    private static void awaitTermination(ExecutorService executor, long timeout) throws InterruptedException{
+        if (!executor.awaitTermination(timeout, TimeUnit.MILLISECONDS)){
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Creates the client.
+     * Inserts are completed on the ticker, fetches block the calling thread like the real client.
+     */
+    private HighLevelSimpleClient createClient(){
+        return proxy(HighLevelSimpleClient.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String name = method.getName();
+                if (name.equals("insert") && args != null && args.length > 0 && args[0] instanceof InsertBlock){
+                    ClientPutCallback callback = null;
+                    InsertContext context = null;
+                    short priority = 0;
+                    for (Object arg : args){
+                        if (arg instanceof ClientPutCallback){
+                            callback = (ClientPutCallback)arg;
+                        }
+                        else if (arg instanceof InsertContext){
+                            context = (InsertContext)arg;
+                        }
+                        else if (arg instanceof Short){
+                            priority = (Short)arg;
+                        }
+                    }
+                    if (callback == null){
+                        throw new UnsupportedOperationException("Blocking inserts are not used by the Toadlet");
+                    }
+                    return insert((InsertBlock)args[0], context, priority, callback);
+                }
+                if (name.equals("fetch") && method.getReturnType() == FetchResult.class){
+                    sleep(fetchDelay);
+                    byte[] data = new byte[fetchSize];
+                    ThreadLocalRandom.current().nextBytes(data);
+                    return new FetchResult(new ClientMetadata("application/octet-stream"), new ArrayBucket(data));
+                }
+                if (name.equals("getInsertContext")){
+                    return newInsertContext();
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Runs an insert on the ticker.
+     * Like a real CHK insert the URI is generated a quarter into the insert 
+     * and the data is fetchable half way through.
+     * Nothing is reported after the insert has been cancelled.
+     */
+    private ClientPutter insert(final InsertBlock block, InsertContext context, short priority, final ClientPutCallback callback){
+        insertsRunning.incrementAndGet();
+        final FakePutter putter = new FakePutter(callback, block, context, priority);
+        long delay = jitter(insertDelay);
+        final boolean fail = ThreadLocalRandom.current().nextDouble() < insertFailureRate;
+        if (!fail){
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (putter.isRunning()){
+                        callback.onGeneratedURI(block.desiredURI, putter);
+                    }
+                }
+            }, delay / 4, TimeUnit.MILLISECONDS);
+            scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (putter.isRunning()){
+                        callback.onFetchable(putter);
+                    }
+                }
+            }, delay / 2, TimeUnit.MILLISECONDS);
+        }
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (!putter.finish()){
+                    return;
+                }
+                if (fail){
+                    callback.onFailure(new InsertException(InsertException.InsertExceptionMode.REJECTED_OVERLOAD, "Fake failure", null), putter);
+                }
+                else {
+                    callback.onSuccess(putter);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        return putter;
+    }
+
+    /**
+     * FakePutter is the ClientPutter of a fake insert.
+     * Like fred's, cancel reports the CANCELLED failure to the callback synchronously, 
+     * before it returns to the caller.
+     */
+    private class FakePutter extends ClientPutter {
+        private final ClientPutCallback callback;
+        private final FreenetURI uri;
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        FakePutter(ClientPutCallback callback, InsertBlock block, InsertContext context, short priority){
+            super(callback, block.getData(), block.desiredURI, null, context, priority, false, null, false, null, null, 0);
+            this.callback = callback;
+            this.uri = block.desiredURI;
+        }
+
+        /**
+         * Marks the insert as finished
+         *
+         * @return boolean : false if it had already finished or been cancelled
+         */
+        boolean finish(){
+            if (!finished.compareAndSet(false, true)){
+                return false;
+            }
+            insertsRunning.decrementAndGet();
+            return true;
+        }
+
+        boolean isRunning(){
+            return !finished.get();
+        }
+
+        @Override
+        public void cancel(ClientContext context){
+            if (finish()){
+                insertsCancelled.incrementAndGet();
+                callback.onFailure(new InsertException(InsertException.InsertExceptionMode.CANCELLED, "Cancelled", null), this);
+            }
+        }
+
+        @Override
+        public FreenetURI getURI(){
+            return uri;
+        }
+    }
+
+    /**
+     * Creates the factory of the buckets for inserted data.
+     * The buckets are held in memory and count when they are freed.
+     */
+    private BucketFactory createBucketFactory(){
+        return proxy(BucketFactory.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("makeBucket")){
+                    bucketsCreated.incrementAndGet();
+                    return trackedBucket(new ArrayBucket());
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    private RandomAccessBucket trackedBucket(final ArrayBucket bucket){
+        final AtomicInteger freed = new AtomicInteger();
+        return proxy(RandomAccessBucket.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                if (method.getName().equals("free") && freed.getAndIncrement() == 0){
+                    bucketsFreed.incrementAndGet();
+                }
+                if (method.getDeclaringClass() == Object.class){
+                    return defaultValue(proxy, method, args);
+                }
+                try {
+                    return method.invoke(bucket, args);
+                }
+                catch (InvocationTargetException e){
+                    throw e.getCause();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the USK tracker, which finds a new edition of every subscribed USK at a fixed interval
+     */
+    private NodeServices.USKTracker createUSKTracker(){
+        final ConcurrentHashMap<USKCallback, ScheduledFuture<?>> subscriptions = new ConcurrentHashMap<USKCallback, ScheduledFuture<?>>();
+        return new NodeServices.USKTracker() {
+            @Override
+            public void subscribe(final USK usk, final USKCallback callback) {
+                final AtomicLong edition = new AtomicLong(usk.getSuggestedEdition());
+                subscriptions.put(callback, scheduler.scheduleAtFixedRate(new Runnable() {
+                    @Override
+                    public void run() {
+                        long found = edition.getAndIncrement();
+                        callback.onFoundEdition(found, usk.copy(found), null, false, (short)-1, null, true, true);
+                    }
+                }, fetchDelay, Math.max(1, uskEditionInterval), TimeUnit.MILLISECONDS));
+            }
+
+            @Override
+            public void unsubscribe(USK usk, USKCallback callback) {
+                ScheduledFuture<?> editions = subscriptions.remove(callback);
+                if (editions != null){
+                    editions.cancel(false);
+                }
+            }
+        };
+    }
+
+    /**
+     * Creates the connector to the fake Indynet and WSFreenet plugins.
+     * Every message is answered on the ticker after the configured delay.
+     */
+    private NodeServices.PluginConnector createPluginConnector(){
+        return new NodeServices.PluginConnector() {
+            @Override
+            public FCPPluginConnection connect(final String pluginName, final ClientSideFCPMessageHandler handler) throws PluginNotFoundException {
+                final UUID id = UUID.randomUUID();
+                return proxy(FCPPluginConnection.class, new InvocationHandler() {
+                    @Override
+                    public Object invoke(final Object connection, Method method, Object[] args) throws Throwable {
+                        if (method.getName().equals("send") && args.length == 1){
+                            final FCPPluginMessage message = (FCPPluginMessage)args[args.length - 1];
+                            if (ThreadLocalRandom.current().nextDouble() < fcpDropRate){
+                                return null;
+                            }
+                            scheduler.schedule(new Runnable() {
+                                @Override
+                                public void run() {
+                                    handler.handlePluginFCPMessage((FCPPluginConnection)connection, reply(pluginName, message));
+                                }
+                            }, jitter(fcpDelay), TimeUnit.MILLISECONDS);
+                            return null;
+                        }
+                        if (method.getName().equals("getID")){
+                            return id;
+                        }
+                        return defaultValue(connection, method, args);
+                    }
+                });
+            }
+        };
+    }
+
+    /**
+     * Creates the reply of a fake plugin to a message
+     */
+    private FCPPluginMessage reply(String pluginName, FCPPluginMessage message){
+        if (ThreadLocalRandom.current().nextDouble() < fcpFailureRate){
+            return FCPPluginMessage.constructErrorReply(message, "FakeError", "Fake failure");
+        }
+        String action = message.params.get("action");
+        SimpleFieldSet params = new SimpleFieldSet(false);
+        if ("resolver.resolve".equals(action)){
+            params.putSingle("json", "{\"requestKey\":\"CHK@fake/"+message.params.get("name")+"\"}");
+        }
+        else if ("resolver.register".equals(action)){
+            params.putSingle("resolveURI", "USK@fake/"+message.params.get("name")+"/0");
+        }
+        else {
+            params.putSingle("plugin", pluginName);
+            params.putSingle("status", "OK");
+        }
+        return FCPPluginMessage.constructSuccessReply(message, params, null);
+    }
+
+    /**
+     * Creates an InsertContext with default values.
+     * InsertContext has no default constructor, so the public constructor with the most
+     * parameters is called with zero values.
+     */
+    private static InsertContext newInsertContext() throws Exception{
+        Constructor<?> longest = null;
+        for (Constructor<?> constructor : InsertContext.class.getConstructors()){
+            boolean simple = true;
+            for (Class<?> type : constructor.getParameterTypes()){
+                simple &= type.isPrimitive() || type.isEnum() || type == String.class || type == SimpleEventProducer.class;
+            }
+            if (simple && (longest == null || constructor.getParameterTypes().length > longest.getParameterTypes().length)){
+                longest = constructor;
+            }
+        }
+        if (longest == null){
+            return null;
+        }
+        Class<?>[] types = longest.getParameterTypes();
+        Object[] values = new Object[types.length];
+        for (int i=0; i<types.length; i++){
+            if (types[i].isPrimitive()){
+                values[i] = zero(types[i]);
+            }
+            else if (types[i].isEnum()){
+                values[i] = types[i].getEnumConstants()[0];
+            }
+            else if (types[i] == SimpleEventProducer.class){
+                values[i] = new SimpleEventProducer();
+            }
+        }
+        return (InsertContext)longest.newInstance(values);
+    }
+
+    static long jitter(long delay){
+        if (delay <= 0){
+            return 0;
+        }
+        /*Uniform between half and one and a half times the delay*/
+        return delay / 2 + (long)(ThreadLocalRandom.current().nextDouble() * delay);
+    }
+
+    private static void sleep(long millis) throws InterruptedException{
+        if (millis > 0){
+            Thread.sleep(jitter(millis));
+        }
+    }
+
+    private static ThreadFactory threadFactory(final String name){
+        final AtomicInteger count = new AtomicInteger();
+        return new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, THREAD_PREFIX+name+"-"+count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    static <T> T proxy(Class<T> type, InvocationHandler handler){
+        return type.cast(Proxy.newProxyInstance(FakeNode.class.getClassLoader(), new Class<?>[]{type}, handler));
+    }
+
+    /**
+     * Implements the Object methods of a proxy and returns a zero value for every other method
+     */
+    static Object defaultValue(Object proxy, Method method, Object[] args){
+        String name = method.getName();
+        if (name.equals("equals") && args != null && args.length == 1){
+            return proxy == args[0];
+        }
+        if (name.equals("hashCode") && (args == null || args.length == 0)){
+            return System.identityHashCode(proxy);
+        }
+        if (name.equals("toString") && (args == null || args.length == 0)){
+            return method.getDeclaringClass().getSimpleName()+"@"+Integer.toHexString(System.identityHashCode(proxy));
+        }
+        return method.getReturnType().isPrimitive() ? zero(method.getReturnType()) : null;
+    }
+
+    private static Object zero(Class<?> type){
+        if (type == boolean.class){
+            return false;
+        }
+        if (type == void.class){
+            return null;
+        }
+        if (type == char.class){
+            return (char)0;
+        }
+        if (type == long.class){
+            return 0L;
+        }
+        if (type == float.class){
+            return 0f;
+        }
+        if (type == double.class){
+            return 0d;
+        }
+        if (type == byte.class){
+            return (byte)0;
+        }
+        if (type == short.class){
+            return (short)0;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,179 @@
+package plugins.RestFreenet;
+
+import freenet.clients.http.ToadletContext;
+import freenet.support.MultiValueTable;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.api.HTTPRequest;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A request given to the Toadlet by the load test harness.
+ * It provides stand-in HTTPRequest and ToadletContext objects
+ * and records the status code and the size of the reply.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class FakeRequest {
+    private final String method;
+    private final URI uri;
+    private final Map<String, String> params;
+    private final Map<String, String> headers; //Lower case name => value
+    private final Bucket data;
+    private int status;
+    private long replyBytes;
+
+    /**
+     * Constructor
+     *
+     * @param method String : The HTTP method
+     * @param uri String : The path and query of the request
+     * @param data byte[] : The request content or null
+     */
+    public FakeRequest(String method, String uri, byte[] data){
+        this.method = method;
+        this.uri = URI.create(uri);
+        this.params = new HashMap<String, String>();
+        this.headers = new HashMap<String, String>();
+        /*The raw data of a real request is not a RandomAccessBucket, so the Toadlet copies it*/
+        this.data = data == null ? null : new SimpleReadOnlyArrayBucket(data);
+        String query = this.uri.getRawQuery();
+        if (query != null){
+            for (String pair : query.split("&")){
+                int eq = pair.indexOf('=');
+                if (eq > 0){
+                    params.put(pair.substring(0, eq), pair.substring(eq + 1));
+                }
+                else {
+                    params.put(pair, "");
+                }
+            }
+        }
+    }
+
+    /**
+     * Sets a request header
+     *
+     * @param name String : The header name
+     * @param value String : The header value
+     * @return FakeRequest : This request
+     */
+    public FakeRequest header(String name, String value){
+        headers.put(name.toLowerCase(), value);
+        return this;
+    }
+
+    public String getMethod(){
+        return method;
+    }
+
+    public URI getUri(){
+        return uri;
+    }
+
+    /**
+     * Returns the status code of the reply
+     *
+     * @return int : The status code or 0 if no reply was sent
+     */
+    public int getStatus(){
+        return status;
+    }
+
+    /**
+     * Returns the number of content bytes of the reply
+     *
+     * @return long
+     */
+    public long getReplyBytes(){
+        return replyBytes;
+    }
+
+    /**
+     * Creates the HTTPRequest object
+     *
+     * @return HTTPRequest
+     */
+    public HTTPRequest createHTTPRequest(){
+        return FakeNode.proxy(HTTPRequest.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if (name.equals("getParam") && args.length <= 2){
+                    String value = params.get((String)args[0]);
+                    if (value == null){
+                        return args.length == 2 ? args[1] : "";
+                    }
+                    return value;
+                }
+                if (name.equals("isParameterSet")){
+                    return params.containsKey((String)args[0]);
+                }
+                if (name.equals("getHeader")){
+                    return headers.get(((String)args[0]).toLowerCase());
+                }
+                if (name.equals("getRawData")){
+                    return data;
+                }
+                if (name.equals("getPath")){
+                    return uri.getPath();
+                }
+                if (name.equals("getMethod")){
+                    return method;
+                }
+                if (name.equals("getContentLength")){
+                    return data == null ? 0 : (int)data.size();
+                }
+                return FakeNode.defaultValue(proxy, m, args);
+            }
+        });
+    }
+
+    /**
+     * Creates the ToadletContext object
+     *
+     * @return ToadletContext
+     */
+    public ToadletContext createToadletContext(){
+        return FakeNode.proxy(ToadletContext.class, new InvocationHandler() {
+            @Override
+            public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+                String name = m.getName();
+                if (name.equals("sendReplyHeaders")){
+                    status = (Integer)args[0];
+                    return null;
+                }
+                if (name.equals("writeData")){
+                    if (args[0] instanceof Bucket){
+                        replyBytes += ((Bucket)args[0]).size();
+                    }
+                    else if (args.length == 3){
+                        replyBytes += (Integer)args[2];
+                    }
+                    else {
+                        replyBytes += ((byte[])args[0]).length;
+                    }
+                    return null;
+                }
+                if (name.equals("getHeaders")){
+                    MultiValueTable<String, String> requestHeaders = new MultiValueTable<String, String>();
+                    for (Map.Entry<String, String> header : headers.entrySet()){
+                        requestHeaders.put(header.getKey(), header.getValue());
+                    }
+                    return requestHeaders;
+                }
+                if (name.equals("getUri")){
+                    return uri;
+                }
+                if (name.equals("isAllowedFullAccess")){
+                    return true;
+                }
+                return FakeNode.defaultValue(proxy, m, args);
+            }
+        });
+    }
+}
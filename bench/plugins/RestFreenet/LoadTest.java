@@ -0,0 +1,374 @@
+package plugins.RestFreenet;
+
+import freenet.keys.FreenetURI;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+
+/**
+ * End to end load test of RestToadlet on a FakeNode.
+ * Worker threads drive the real handlers with a weighted mix of requests as fast as they are answered.
+ * Throughput, latency percentiles and status codes are reported per action,
+ * together with the insert buckets and the threads left over after shutdown.
+ *
+ * Options are given as name=value arguments:
+ *      threads, duration (seconds), mix (action:weight,...), bodySize, fetchSize, fetchKeys, names, files, usks,
+ *      accept (the Accept header of every request, e.g. application/cbor),
+ *      insertDelay, insertFailureRate, fetchDelay, fcpDelay, fcpFailureRate, fcpDropRate, uskEditionInterval (delays in milliseconds),
+ *      output (the JSON report file) and config.<key> for any key of restfreenet.config.json.
+ * The actions are status, keygen, fetch, resname, wsfreenetstatus, insert, insertasync, inserturi, insertstream,
+ * insertpersistent (needs config.insertJournalDir), chk, usk (the latest edition of one of usks USKs) and metrics.
+ * Inserts use the same body and one of files file names, so repeated inserts of a name are deduplicated.
+ * Persistent inserts still running at the end are stopped by the shutdown and must keep their journal entries.
+ * The exit code is 1 if buckets or threads leaked or journal entries of stopped inserts were lost.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class LoadTest {
+    private static final String BASEPATH = "/rest/";
+
+    private final Map<String, String> options;
+    private final List<String> actions; //Every action repeated by its weight
+    private final String[] fetchUris;
+    private final String[] uskUris;
+    private final byte[] body;
+    private final int names;
+    private final int files;
+
+    public LoadTest(Map<String, String> options){
+        this.options = options;
+        this.actions = new ArrayList<String>();
+        for (String entry : option("mix", "status:1,keygen:1,fetch:4,resname:4,wsfreenetstatus:1,insert:2,insertasync:2").split(",")){
+            String[] parts = entry.split(":");
+            int weight = parts.length > 1 ? Integer.parseInt(parts[1]) : 1;
+            for (int i=0; i<weight; i++){
+                actions.add(parts[0]);
+            }
+        }
+        this.fetchUris = new String[(int)longOption("fetchKeys", 64)];
+        for (int i=0; i<fetchUris.length; i++){
+            byte[] routingKey = new byte[32];
+            byte[] cryptoKey = new byte[32];
+            ThreadLocalRandom.current().nextBytes(routingKey);
+            ThreadLocalRandom.current().nextBytes(cryptoKey);
+            fetchUris[i] = new FreenetURI("CHK", "file-"+i, routingKey, cryptoKey, new byte[]{0, 0, 0, 2, 0}).toString();
+        }
+        this.uskUris = new String[(int)longOption("usks", 100)];
+        for (int i=0; i<uskUris.length; i++){
+            byte[] routingKey = new byte[32];
+            byte[] cryptoKey = new byte[32];
+            ThreadLocalRandom.current().nextBytes(routingKey);
+            ThreadLocalRandom.current().nextBytes(cryptoKey);
+            uskUris[i] = new FreenetURI("USK", "feed-"+i, routingKey, cryptoKey, new byte[]{0, 2, 1}).toString()+"/0";
+        }
+        this.body = new byte[(int)longOption("bodySize", 4096)];
+        ThreadLocalRandom.current().nextBytes(body);
+        this.names = (int)longOption("names", 1000);
+        this.files = (int)longOption("files", 1000000);
+    }
+
+    public static void main(String[] args) throws Exception{
+        Map<String, String> options = new HashMap<String, String>();
+        for (String arg : args){
+            int eq = arg.indexOf('=');
+            if (eq < 0){
+                throw new IllegalArgumentException("Expected name=value but got "+arg);
+            }
+            options.put(arg.substring(0, eq), arg.substring(eq + 1));
+        }
+        System.exit(new LoadTest(options).run() ? 0 : 1);
+    }
+
+    /**
+     * Runs the load test and writes the report
+     *
+     * @return boolean : false if buckets or threads leaked or journal entries were lost
+     * @throws Exception
+     */
+    public boolean run() throws Exception{
+        Set<Thread> baseline = new HashSet<Thread>(Thread.getAllStackTraces().keySet());
+        FakeNode node = new FakeNode(longOption("insertDelay", 200), doubleOption("insertFailureRate", 0.01),
+                longOption("fetchDelay", 20), (int)longOption("fetchSize", 65536),
+                longOption("fcpDelay", 2), doubleOption("fcpFailureRate", 0.001), doubleOption("fcpDropRate", 0),
+                longOption("uskEditionInterval", 1000));
+        JSONObject config = new JSONObject();
+        config.put("insertJobRetention", 1000L);
+        for (Map.Entry<String, String> option : options.entrySet()){
+            if (option.getKey().startsWith("config.")){
+                config.put(option.getKey().substring(7), parseValue(option.getValue()));
+            }
+        }
+        final RestToadlet toadlet = new RestToadlet(BASEPATH, RestFreenet.INDYNET_PLUGIN_NAME, RestFreenet.WSFREENET_PLUGIN_NAME, config, node.getServices());
+
+        int threads = (int)longOption("threads", 64);
+        final long deadline = System.nanoTime() + longOption("duration", 30) * 1000000000L;
+        final Worker[] workers = new Worker[threads];
+        for (int i=0; i<threads; i++){
+            workers[i] = new Worker(toadlet, deadline);
+            workers[i].setName("LoadTest worker-"+i);
+        }
+        long start = System.nanoTime();
+        for (Worker worker : workers){
+            worker.start();
+        }
+        for (Worker worker : workers){
+            worker.join();
+        }
+        double elapsed = (System.nanoTime() - start) / 1e9;
+
+        /*Wait for the asynchronous inserts to finish before looking for leaks, 
+        except the persistent ones which are left to the shutdown*/
+        long drainDeadline = System.currentTimeMillis() + longOption("drainTimeout", 30000);
+        while (node.getInsertsRunning() > journalSize(toadlet) && System.currentTimeMillis() < drainDeadline){
+            Thread.sleep(50);
+        }
+        int cancelled = node.getInsertsCancelled();
+        toadlet.shutdown();
+        int suspended = node.getInsertsCancelled() - cancelled;
+        int lostJournalEntries = Math.max(0, suspended - journalSize(toadlet));
+        node.shutdown(5000);
+        Thread.sleep(200);
+        JSONArray leakedThreads = new JSONArray();
+        for (Thread thread : Thread.getAllStackTraces().keySet()){
+            if (!baseline.contains(thread) && thread.isAlive() && thread != Thread.currentThread()){
+                leakedThreads.add(thread.getName());
+            }
+        }
+
+        JSONObject report = report(workers, elapsed);
+        report.put("insertBucketsCreated", node.getBucketsCreated());
+        report.put("leakedBuckets", node.getLiveBuckets());
+        report.put("insertsNotFinished", node.getInsertsRunning() - suspended);
+        report.put("suspendedInserts", suspended);
+        report.put("lostJournalEntries", lostJournalEntries);
+        report.put("leakedThreads", leakedThreads);
+        String output = option("output", "loadtest_output.json");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(output), "UTF-8");
+        try {
+            report.writeJSONString(writer);
+        }
+        finally {
+            writer.close();
+        }
+        print(report);
+        return node.getLiveBuckets() == 0 && leakedThreads.isEmpty() && lostJournalEntries == 0;
+    }
+
+    /**
+     * Returns the number of entries in the journal of the persistent inserts
+     */
+    private static int journalSize(RestToadlet toadlet){
+        return toadlet.insertJournal == null ? 0 : toadlet.insertJournal.load().size();
+    }
+
+    /**
+     * Creates the request for an action
+     */
+    private FakeRequest createRequest(String action){
+        FakeRequest request = newRequest(action);
+        String accept = option("accept", "");
+        if (!accept.isEmpty()){
+            request.header("Accept", accept);
+        }
+        return request;
+    }
+
+    private FakeRequest newRequest(String action){
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (action.equals("fetch")){
+            return new FakeRequest("GET", BASEPATH+"fetch/"+fetchUris[random.nextInt(fetchUris.length)], null);
+        }
+        if (action.equals("keygen")){
+            return new FakeRequest("GET", BASEPATH+"keygen/SSK", null);
+        }
+        if (action.equals("usk")){
+            return new FakeRequest("GET", BASEPATH+"usk/"+uskUris[random.nextInt(uskUris.length)], null);
+        }
+        if (action.equals("resname")){
+            return new FakeRequest("GET", BASEPATH+"resname/name-"+random.nextInt(names), null);
+        }
+        if (action.startsWith("insert")){
+            String query = action.equals("insert") ? "" 
+                    : action.equals("insertpersistent") ? "?mode=async&persistent=1" : "?mode="+action.substring("insert".length());
+            return new FakeRequest("POST", BASEPATH+"insert/CHK@/file-"+random.nextInt(files)+".bin"+query, body)
+                    .header("Content-Type", "application/octet-stream");
+        }
+        if (action.equals("chk")){
+            return new FakeRequest("POST", BASEPATH+"chk/file-"+random.nextInt(files)+".bin", body)
+                    .header("Content-Type", "application/octet-stream");
+        }
+        return new FakeRequest("GET", BASEPATH+action, null);
+    }
+
+    private JSONObject report(Worker[] workers, double elapsed){
+        Map<String, Samples> byAction = new TreeMap<String, Samples>();
+        Samples all = new Samples();
+        for (Worker worker : workers){
+            for (Map.Entry<String, Samples> entry : worker.samples.entrySet()){
+                Samples samples = byAction.get(entry.getKey());
+                if (samples == null){
+                    samples = new Samples();
+                    byAction.put(entry.getKey(), samples);
+                }
+                samples.addAll(entry.getValue());
+                all.addAll(entry.getValue());
+            }
+        }
+        JSONObject report = new JSONObject();
+        report.put("threads", workers.length);
+        report.put("durationSeconds", elapsed);
+        report.put("total", all.toJson(elapsed));
+        JSONObject actionsReport = new JSONObject();
+        for (Map.Entry<String, Samples> entry : byAction.entrySet()){
+            actionsReport.put(entry.getKey(), entry.getValue().toJson(elapsed));
+        }
+        report.put("actions", actionsReport);
+        return report;
+    }
+
+    private static void print(JSONObject report){
+        JSONObject total = (JSONObject)report.get("total");
+        System.out.println(String.format("%d requests in %.1f s, %.0f req/s, p50 %.2f ms, p99 %.2f ms",
+                total.get("requests"), report.get("durationSeconds"), total.get("requestsPerSecond"),
+                total.get("p50Millis"), total.get("p99Millis")));
+        JSONObject actionsReport = (JSONObject)report.get("actions");
+        for (Object action : new TreeMap<Object, Object>(actionsReport).keySet()){
+            JSONObject stats = (JSONObject)actionsReport.get(action);
+            System.out.println(String.format("  %-16s %8d req %8.0f req/s  p50 %8.2f ms  p99 %8.2f ms  max %8.2f ms  %s",
+                    action, stats.get("requests"), stats.get("requestsPerSecond"), stats.get("p50Millis"),
+                    stats.get("p99Millis"), stats.get("maxMillis"), stats.get("statuses")));
+        }
+        System.out.println("Leaked buckets: "+report.get("leakedBuckets")+", leaked threads: "+report.get("leakedThreads")
+                +", suspended inserts: "+report.get("suspendedInserts")+", lost journal entries: "+report.get("lostJournalEntries"));
+    }
+
+    private String option(String name, String defaultValue){
+        String value = options.get(name);
+        return value == null ? defaultValue : value;
+    }
+
+    private long longOption(String name, long defaultValue){
+        return Long.parseLong(option(name, String.valueOf(defaultValue)));
+    }
+
+    private double doubleOption(String name, double defaultValue){
+        return Double.parseDouble(option(name, String.valueOf(defaultValue)));
+    }
+
+    private static Object parseValue(String value){
+        try {
+            return Long.parseLong(value);
+        }
+        catch (NumberFormatException e){
+            return value;
+        }
+    }
+
+    /**
+     * Worker sends requests in a loop until the deadline
+     */
+    private class Worker extends Thread {
+        final RestToadlet toadlet;
+        final long deadline;
+        final Map<String, Samples> samples = new HashMap<String, Samples>();
+
+        Worker(RestToadlet toadlet, long deadline){
+            this.toadlet = toadlet;
+            this.deadline = deadline;
+        }
+
+        @Override
+        public void run(){
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            while (System.nanoTime() < deadline){
+                String action = actions.get(random.nextInt(actions.size()));
+                FakeRequest request = createRequest(action);
+                long start = System.nanoTime();
+                try {
+                    if (request.getMethod().equals("POST")){
+                        toadlet.handleMethodPOST(request.getUri(), request.createHTTPRequest(), request.createToadletContext());
+                    }
+                    else {
+                        toadlet.handleMethodGET(request.getUri(), request.createHTTPRequest(), request.createToadletContext());
+                    }
+                }
+                catch (Exception e){
+                    //Counted as status 0
+                }
+                long duration = System.nanoTime() - start;
+                Samples actionSamples = samples.get(action);
+                if (actionSamples == null){
+                    actionSamples = new Samples();
+                    samples.put(action, actionSamples);
+                }
+                actionSamples.add(duration, request.getStatus());
+            }
+        }
+    }
+
+    /**
+     * Samples holds the latencies and status codes of the requests of an action
+     */
+    private static class Samples {
+        long[] nanos = new long[1024];
+        int count = 0;
+        final Map<Integer, Integer> statuses = new TreeMap<Integer, Integer>();
+
+        void add(long duration, int status){
+            if (count == nanos.length){
+                nanos = Arrays.copyOf(nanos, count * 2);
+            }
+            nanos[count++] = duration;
+            Integer n = statuses.get(status);
+            statuses.put(status, n == null ? 1 : n + 1);
+        }
+
+        void addAll(Samples other){
+            if (count + other.count > nanos.length){
+                nanos = Arrays.copyOf(nanos, Math.max(nanos.length * 2, count + other.count));
+            }
+            System.arraycopy(other.nanos, 0, nanos, count, other.count);
+            count += other.count;
+            for (Map.Entry<Integer, Integer> status : other.statuses.entrySet()){
+                Integer n = statuses.get(status.getKey());
+                statuses.put(status.getKey(), n == null ? status.getValue() : n + status.getValue());
+            }
+        }
+
+        JSONObject toJson(double elapsed){
+            long[] sorted = Arrays.copyOf(nanos, count);
+            Arrays.sort(sorted);
+            JSONObject stats = new JSONObject();
+            stats.put("requests", (long)count);
+            stats.put("requestsPerSecond", count / elapsed);
+            stats.put("p50Millis", percentile(sorted, 0.5));
+            stats.put("p90Millis", percentile(sorted, 0.9));
+            stats.put("p99Millis", percentile(sorted, 0.99));
+            stats.put("maxMillis", count == 0 ? 0.0 : sorted[count - 1] / 1e6);
+            JSONObject statusCounts = new JSONObject();
+            for (Map.Entry<Integer, Integer> status : statuses.entrySet()){
+                statusCounts.put(String.valueOf(status.getKey()), status.getValue());
+            }
+            stats.put("statuses", statusCounts);
+            return stats;
+        }
+
+        static double percentile(long[] sorted, double p){
+            if (sorted.length == 0){
+                return 0.0;
+            }
+            return sorted[(int)Math.min(sorted.length - 1, Math.floor(p * sorted.length))] / 1e6;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package plugins.RestFreenet;
+
+import freenet.crypt.DummyRandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.SimpleReadOnlyArrayBucket;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.ArrayBucketFactory;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.json.simple.JSONArray;
+import org.json.simple.JSONObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * JMH microbenchmarks of the request hot paths of RestToadlet.
+ * They cover route matching and path parameter extraction, JsonWriter response encoding,
+ * SSK key generation on a request thread when the key pool is empty and the conversion of the request body
+ * to the RandomAccessBucket that is inserted.
+ * Run with ant bench, the results are written as JSON to bench_output.json.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class RestToadletBenchmark {
+    private static final String BASEPATH = "/rest/";
+    private static final String INSERT_PATH = BASEPATH+"insert/SSK@AKTTKG6YwjrHzWo67laRcoPqibyiTdyYufjVg54fBlWr,AwUSJG5ZS-FDZTqnt6skTzhxQe08T-fbKXj8aEHZsXM,AQECAAE/site/index.html";
+    private static final String KEYGEN_PATH = BASEPATH+"keygen/SSK";
+    private static final String UNKNOWN_PATH = BASEPATH+"unknown/action";
+
+    @Param({"4096", "1048576"})
+    public int bodySize;
+
+    private FakeNode node;
+    private RestToadlet toadlet;
+    private RouteTable routes;
+    private SSKKeyPool keyPool;
+    private DummyRandomSource random;
+    private BucketFactory bucketFactory;
+    private byte[] body;
+
+    @Setup
+    public void setup(){
+        /*The routes of a toadlet on a fake node, only matched and never handled*/
+        node = new FakeNode(0, 0, 0, 0, 0, 0, 0, 1000);
+        toadlet = new RestToadlet(BASEPATH, RestFreenet.INDYNET_PLUGIN_NAME, RestFreenet.WSFREENET_PLUGIN_NAME, new JSONObject(), node.getServices());
+        routes = toadlet.createRoutes();
+        random = new DummyRandomSource(1234);
+        /*A disabled pool, so every take() generates the key on the calling thread*/
+        keyPool = new SSKKeyPool(random, null, 0, 0);
+        bucketFactory = new ArrayBucketFactory();
+        body = new byte[bodySize];
+        random.nextBytes(body);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException{
+        toadlet.shutdown();
+        node.shutdown(5000);
+    }
+
+    @Benchmark
+    public void matchInsert(Blackhole bh){
+        RouteTable.Match match = routes.match("POST", INSERT_PATH);
+        bh.consume(match.get("key")+"/");
+        bh.consume(match.get("filename"));
+    }
+
+    @Benchmark
+    public void matchKeygen(Blackhole bh){
+        RouteTable.Match match = routes.match("GET", KEYGEN_PATH);
+        bh.consume(match.get("keytype"));
+    }
+
+    @Benchmark
+    public RouteTable.Match matchNotFound(){
+        return routes.match("GET", UNKNOWN_PATH);
+    }
+
+    @Benchmark
+    public RouteTable.Match matchMethodNotAllowed(){
+        return routes.match("POST", KEYGEN_PATH);
+    }
+
+    @Benchmark
+    public JsonWriter jsonInsertReply(){
+        JSONObject response = new JSONObject();
+        response.put("requestURI", "CHK@Fm2RHQ2ZXsbAPrrtjsUzHTKdvVRWlSfWdBudnOKbqvU,4ksFu3V5KUqcAtYVaW8Y~NuD9Pqk5wOm9q~R~8sPfGY,AAMC--8/index.html");
+        return JsonWriter.forThread(false).value(response);
+    }
+
+    @Benchmark
+    public JsonWriter jsonKeygenReply(){
+        JSONArray keys = new JSONArray();
+        for (int i=0; i<10; i++){
+            JSONObject pair = new JSONObject();
+            pair.put("insertURI", "SSK@AKTTKG6YwjrHzWo67laRcoPqibyiTdyYufjVg54fBlWr,AwUSJG5ZS-FDZTqnt6skTzhxQe08T-fbKXj8aEHZsXM,AQECAAE/file-"+i);
+            pair.put("requestURI", "SSK@Fm2RHQ2ZXsbAPrrtjsUzHTKdvVRWlSfWdBudnOKbqvU,4ksFu3V5KUqcAtYVaW8Y~NuD9Pqk5wOm9q~R~8sPfGY,AQACAAE/file-"+i);
+            keys.add(pair);
+        }
+        JSONObject response = new JSONObject();
+        response.put("keys", keys);
+        return JsonWriter.forThread(false).value(response);
+    }
+
+    @Benchmark
+    public void keygenSSK(Blackhole bh){
+        InsertableClientSSK key = keyPool.take();
+        bh.consume(key.getInsertURI().setDocName("file"));
+        bh.consume(key.getURI().setDocName("file"));
+    }
+
+    @Benchmark
+    public RandomAccessBucket bodyToBucketCopy() throws IOException{
+        Bucket data = new SimpleReadOnlyArrayBucket(body);
+        return RestToadlet.copyToRandomAccessBucket(data, bucketFactory);
+    }
+}
@@ -0,0 +1,169 @@
+package plugins.RestFreenet;
+
+import freenet.support.api.Bucket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Decides if the data of an insert is compressed by the node.
+ * The node tries all its compressors on every insert, which only costs time for data that does not shrink.
+ * The client can ask for compression or passthrough, otherwise compression is skipped
+ * for content types that are already compressed and for data whose first bytes look random.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class CompressionPolicy {
+    public static final String[] DEFAULT_SKIP_TYPES = {"image/jpeg", "image/png", "image/gif", "image/webp", "image/avif",
+        "video/*", "audio/mpeg", "audio/ogg", "audio/aac", "audio/mp4", "audio/webm", "font/woff", "font/woff2",
+        "application/zip", "application/gzip", "application/x-gzip", "application/x-bzip2", "application/x-xz",
+        "application/x-7z-compressed", "application/vnd.rar", "application/x-rar-compressed", "application/zstd"};
+    private final List<String> skipTypes; //Content types never compressed, type/* matches all subtypes
+    private final double entropyThreshold; //Bits per byte above which a sample is taken as incompressible
+    private final int sampleSize; //The number of first bytes sampled
+    private final String compressors; //The compressor descriptor used when compressing, null for the node's
+
+    /**
+     * Decision is the outcome of the policy for an insert
+     */
+    public static class Decision {
+        public final boolean compress;
+        public final String reason; //client, type, entropy or auto
+
+        private Decision(boolean compress, String reason){
+            this.compress = compress;
+            this.reason = reason;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param skipTypes List<String> : Content types never compressed, type/* matches all subtypes
+     * @param entropyThreshold double : Bits per byte above which a sample is taken as incompressible, 8 or more disables sampling
+     * @param sampleSize int : The number of first bytes sampled
+     * @param compressors String : The compressor descriptor used when compressing, e.g. GZIP, or null for the node's compressors
+     */
+    public CompressionPolicy(List<String> skipTypes, double entropyThreshold, int sampleSize, String compressors){
+        this.skipTypes = new ArrayList<String>();
+        for (String type : skipTypes){
+            this.skipTypes.add(type.toLowerCase());
+        }
+        this.entropyThreshold = entropyThreshold;
+        this.sampleSize = sampleSize;
+        this.compressors = compressors;
+    }
+
+    /**
+     * Returns the content types that are not compressed by default
+     *
+     * @return List<String>
+     */
+    public static List<String> defaultSkipTypes(){
+        return Arrays.asList(DEFAULT_SKIP_TYPES);
+    }
+
+    /**
+     * Returns the compressor descriptor used when compressing
+     *
+     * @return String : The descriptor or null for the node's compressors
+     */
+    public String getCompressors(){
+        return compressors;
+    }
+
+    /**
+     * Decides if the data of an insert is compressed
+     *
+     * @param flag String : The compress parameter of the request, empty or auto to let the policy decide
+     * @param contentType String : The content type of the data or null
+     * @param data Bucket : The data
+     * @return Decision : null if the flag is not valid
+     * @throws IOException
+     */
+    public Decision decide(String flag, String contentType, Bucket data) throws IOException{
+        Decision decision = decide(flag);
+        if (decision == null || !decision.reason.equals("auto")){
+            return decision;
+        }
+        if (isSkippedType(contentType)){
+            return new Decision(false, "type");
+        }
+        if (entropyThreshold < 8 && sampleEntropy(data) > entropyThreshold){
+            return new Decision(false, "entropy");
+        }
+        return new Decision(true, "auto");
+    }
+
+    /**
+     * Decides by the client flag only, for data of mixed types like a site
+     *
+     * @param flag String : The compress parameter of the request, empty or auto to compress
+     * @return Decision : null if the flag is not valid
+     */
+    public Decision decide(String flag){
+        if (flag.equals("1") || flag.equalsIgnoreCase("true") || flag.equalsIgnoreCase("yes")){
+            return new Decision(true, "client");
+        }
+        if (flag.equals("0") || flag.equalsIgnoreCase("false") || flag.equalsIgnoreCase("no")){
+            return new Decision(false, "client");
+        }
+        if (!flag.isEmpty() && !flag.equalsIgnoreCase("auto")){
+            return null;
+        }
+        return new Decision(true, "auto");
+    }
+
+    private boolean isSkippedType(String contentType){
+        if (contentType == null){
+            return false;
+        }
+        String type = contentType.toLowerCase();
+        int semicolon = type.indexOf(';');
+        if (semicolon >= 0){
+            type = type.substring(0, semicolon);
+        }
+        type = type.trim();
+        for (String skipped : skipTypes){
+            if (skipped.endsWith("/*") ? type.startsWith(skipped.substring(0, skipped.length() - 1)) : type.equals(skipped)){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the Shannon entropy of the first bytes of the data in bits per byte
+     */
+    private double sampleEntropy(Bucket data) throws IOException{
+        byte[] sample = new byte[(int)Math.min(sampleSize, data.size())];
+        int length = 0;
+        InputStream in = data.getInputStream();
+        try {
+            int read;
+            while (length < sample.length && (read = in.read(sample, length, sample.length - length)) != -1){
+                length += read;
+            }
+        }
+        finally {
+            in.close();
+        }
+        if (length == 0){
+            return 0;
+        }
+        int[] counts = new int[256];
+        for (int i=0; i<length; i++){
+            counts[sample[i] & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts){
+            if (count > 0){
+                double p = (double)count / length;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+}
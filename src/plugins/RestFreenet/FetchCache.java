@@ -0,0 +1,313 @@
+package plugins.RestFreenet;
+
+import freenet.client.FetchException;
+import freenet.client.FetchResult;
+import freenet.client.HighLevelSimpleClient;
+import freenet.keys.FreenetURI;
+import freenet.support.api.Bucket;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A byte budgeted LRU cache for the data of immutable keys (CHK and SSK).
+ * The cached data is kept in the Buckets returned by the fetches,
+ * which the node moves to disk when they get large.
+ * Concurrent requests for a key that is being fetched wait for the same fetch.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class FetchCache {
+    private final HighLevelSimpleClient client;
+    private final long maxBytes; //The maximum total size of cached data
+    private final long maxEntrySize; //Data larger than this is not cached
+    private final long maxFetchSize; //The maximum size of fetched data
+    private final LinkedHashMap<FreenetURI, Entry> entries; //In access order, eldest first
+    private final Map<FreenetURI, PendingFetch> pending;
+    private long bytes;
+    private long hits;
+    private long misses;
+    private long coalesced;
+    private long evictions;
+
+    /**
+     * Constructor
+     *
+     * @param client HighLevelSimpleClient : The client used for fetching
+     * @param maxBytes long : The maximum total size of cached data, 0 disables caching
+     * @param maxEntrySize long : Data larger than this is not cached
+     * @param maxFetchSize long : The maximum size of fetched data
+     */
+    public FetchCache(HighLevelSimpleClient client, long maxBytes, long maxEntrySize, long maxFetchSize){
+        this.client = client;
+        this.maxBytes = maxBytes;
+        this.maxEntrySize = Math.min(maxEntrySize, maxBytes);
+        this.maxFetchSize = maxFetchSize;
+        this.entries = new LinkedHashMap<FreenetURI, Entry>(16, 0.75f, true);
+        this.pending = new HashMap<FreenetURI, PendingFetch>();
+    }
+
+    /**
+     * Returns true if the data of the URI never changes and can be cached
+     *
+     * @param uri FreenetURI : The requestURI
+     * @return boolean
+     */
+    public boolean isCacheable(FreenetURI uri){
+        return maxBytes > 0 && (uri.isCHK() || uri.isSSK());
+    }
+
+    /**
+     * Returns the data of a requestURI from the cache or fetches it.
+     * The returned Entry must be released when the caller is done with it.
+     *
+     * @param uri FreenetURI : The requestURI
+     * @return Entry
+     * @throws FetchException
+     * @throws InterruptedException
+     */
+    public Entry get(FreenetURI uri) throws FetchException, InterruptedException{
+        if (!isCacheable(uri)){
+            return fetch(uri);
+        }
+        PendingFetch fetch;
+        boolean leader = false;
+        synchronized (this){
+            Entry entry = entries.get(uri);
+            if (entry != null){
+                hits++;
+                entry.acquire();
+                return entry;
+            }
+            fetch = pending.get(uri);
+            if (fetch == null){
+                misses++;
+                fetch = new PendingFetch();
+                pending.put(uri, fetch);
+                leader = true;
+            }
+            else {
+                coalesced++;
+                fetch.waiters++;
+            }
+        }
+        if (leader){
+            Entry entry = null;
+            Exception error = null;
+            try {
+                entry = fetch(uri);
+            }
+            catch (FetchException e){
+                error = e;
+            }
+            catch (RuntimeException e){
+                error = e;
+            }
+            synchronized (this){
+                pending.remove(uri);
+                if (entry != null && entry.size <= maxEntrySize){
+                    entry.cached = true;
+                    entries.put(uri, entry);
+                    bytes += entry.size;
+                    evict();
+                }
+                fetch.complete(entry, error);
+            }
+        }
+        try {
+            return fetch.await();
+        }
+        catch (InterruptedException e){
+            synchronized (this){
+                fetch.abandon();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Frees all cached data
+     */
+    public synchronized void clear(){
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()){
+            Entry entry = it.next();
+            it.remove();
+            bytes -= entry.size;
+            entry.uncache();
+        }
+    }
+
+    /**
+     * Returns the cache statistics
+     *
+     * @return Map<String, Number> : Statistic name => value
+     */
+    public synchronized Map<String, Number> getStats(){
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        long requests = hits + misses;
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        stats.put("coalesced", coalesced);
+        stats.put("hitRatio", requests == 0 ? 0.0 : (double)hits / requests);
+        stats.put("entries", entries.size());
+        stats.put("bytes", bytes);
+        stats.put("maxBytes", maxBytes);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    /**
+     * Fetches the data of a requestURI
+     *
+     * @param uri FreenetURI : The requestURI
+     * @return Entry : An uncached Entry acquired once
+     * @throws FetchException
+     */
+    private Entry fetch(FreenetURI uri) throws FetchException{
+        FetchResult result = client.fetch(uri, maxFetchSize);
+        Bucket data = result.asBucket();
+        data.setReadOnly();
+        Entry entry = new Entry(data, result.getMimeType());
+        entry.acquire();
+        return entry;
+    }
+
+    /**
+     * Removes the least recently used entries until the cached data fits in maxBytes
+     */
+    private void evict(){
+        Iterator<Entry> it = entries.values().iterator();
+        while (bytes > maxBytes && it.hasNext()){
+            Entry entry = it.next();
+            it.remove();
+            bytes -= entry.size;
+            evictions++;
+            entry.uncache();
+        }
+    }
+
+    /**
+     * Entry holds the fetched data of a key.
+     * The Bucket is freed when the entry is not cached
+     * and all the requests using it have released it.
+     */
+    public static class Entry {
+        private final Bucket data;
+        private final String mimeType;
+        private final long size;
+        private int refs;
+        private boolean cached;
+
+        /**
+         * Constructor
+         *
+         * @param data Bucket : The fetched data
+         * @param mimeType String : The mime type of the data
+         */
+        Entry(Bucket data, String mimeType){
+            this.data = data;
+            this.mimeType = mimeType;
+            this.size = data.size();
+        }
+
+        /**
+         * Returns the data
+         *
+         * @return Bucket
+         */
+        public Bucket getData(){
+            return data;
+        }
+
+        /**
+         * Returns the mime type of the data
+         *
+         * @return String
+         */
+        public String getMimeType(){
+            return mimeType;
+        }
+
+        /**
+         * Releases the entry after the data has been used
+         */
+        public synchronized void release(){
+            refs--;
+            freeIfUnused();
+        }
+
+        private synchronized void acquire(){
+            refs++;
+        }
+
+        private synchronized void uncache(){
+            cached = false;
+            freeIfUnused();
+        }
+
+        private void freeIfUnused(){
+            if (refs == 0 && !cached){
+                data.free();
+            }
+        }
+    }
+
+    /**
+     * PendingFetch is used by the requests waiting for a fetch
+     * that another request has started
+     */
+    private static class PendingFetch {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Entry entry;
+        private Exception error;
+        private int waiters = 1;
+
+        /**
+         * Sets the outcome of the fetch.
+         * The Entry is acquired once for every waiting request.
+         * Called with the cache lock held.
+         *
+         * @param entry Entry : The fetched entry acquired once by the fetching request
+         * @param error Exception : The error if the fetch has failed
+         */
+        void complete(Entry entry, Exception error){
+            this.entry = entry;
+            this.error = error;
+            if (entry != null){
+                for (int i=1; i<waiters; i++){
+                    entry.acquire();
+                }
+            }
+            done.countDown();
+        }
+
+        /**
+         * Gives up the share of a request that stopped waiting, as it was interrupted.
+         * The Entry acquired for it is released if the fetch has completed, 
+         * otherwise it is not counted as a waiter any more.
+         * Called with the cache lock held.
+         */
+        void abandon(){
+            if (done.getCount() > 0){
+                waiters--;
+            }
+            else if (entry != null){
+                entry.release();
+            }
+        }
+
+        Entry await() throws FetchException, InterruptedException{
+            done.await();
+            if (error instanceof FetchException){
+                throw (FetchException)error;
+            }
+            if (error != null){
+                throw (RuntimeException)error;
+            }
+            return entry;
+        }
+    }
+}
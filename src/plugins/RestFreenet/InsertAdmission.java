@@ -0,0 +1,181 @@
+package plugins.RestFreenet;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Admission control for inserts.
+ * Limits the number of concurrent inserts and the bytes they hold,
+ * globally and per priority class.
+ * An insert over the limits waits for a short time for running inserts to finish
+ * and is rejected if there is still no room.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class InsertAdmission {
+    private final int maxInserts;
+    private final long maxBytes;
+    private final int[] maxClassInserts; //By priority class
+    private final long[] maxClassBytes; //By priority class
+    private final long queueTimeout; //Milliseconds an insert waits for room
+    private final Lock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private int inserts = 0;
+    private long bytes = 0;
+    private final int[] classInserts;
+    private final long[] classBytes;
+    private int waiting = 0;
+    private long admitted = 0;
+    private long rejected = 0;
+
+    /**
+     * Constructor
+     *
+     * @param maxInserts int : The maximum number of concurrent inserts
+     * @param maxBytes long : The maximum bytes held by the inserts
+     * @param maxClassInserts int[] : The maximum number of concurrent inserts by priority class
+     * @param maxClassBytes long[] : The maximum bytes held by the inserts by priority class
+     * @param queueTimeout long : Milliseconds an insert waits for room before it is rejected
+     */
+    public InsertAdmission(int maxInserts, long maxBytes, int[] maxClassInserts, long[] maxClassBytes, long queueTimeout){
+        this.maxInserts = maxInserts;
+        this.maxBytes = maxBytes;
+        this.maxClassInserts = maxClassInserts;
+        this.maxClassBytes = maxClassBytes;
+        this.queueTimeout = queueTimeout;
+        this.classInserts = new int[maxClassInserts.length];
+        this.classBytes = new long[maxClassBytes.length];
+    }
+
+    /**
+     * Returns true if the priority class is handled
+     *
+     * @param priority short : The priority class
+     * @return boolean
+     */
+    public boolean isValidPriority(short priority){
+        return priority >= 0 && priority < classInserts.length;
+    }
+
+    /**
+     * Checks if an insert can ever be admitted
+     *
+     * @param priority short : The priority class of the insert
+     * @param size long : The bytes held by the insert
+     * @return boolean : false if the insert alone is over the byte limits
+     */
+    public boolean fits(short priority, long size){
+        return size <= maxBytes && size <= maxClassBytes[priority];
+    }
+
+    /**
+     * Admits an insert waiting up to the queue timeout for room
+     *
+     * @param priority short : The priority class of the insert
+     * @param size long : The bytes held by the insert
+     * @return Permit : The permit released when the insert finishes, or null if rejected
+     * @throws InterruptedException
+     */
+    public Permit acquire(short priority, long size) throws InterruptedException{
+        if (!fits(priority, size)){
+            return null;
+        }
+        long remaining = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+        lock.lock();
+        try {
+            waiting++;
+            try {
+                while (!hasRoom(priority, size)){
+                    if (remaining <= 0){
+                        rejected++;
+                        return null;
+                    }
+                    remaining = released.awaitNanos(remaining);
+                }
+            }
+            finally {
+                waiting--;
+            }
+            inserts++;
+            bytes += size;
+            classInserts[priority]++;
+            classBytes[priority] += size;
+            admitted++;
+            return new Permit(priority, size);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the statistics of the admission control
+     *
+     * @return Map<String, Number>
+     */
+    public Map<String, Number> getStats(){
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        lock.lock();
+        try {
+            stats.put("inserts", inserts);
+            stats.put("bytes", bytes);
+            stats.put("maxInserts", maxInserts);
+            stats.put("maxBytes", maxBytes);
+            stats.put("waiting", waiting);
+            stats.put("admitted", admitted);
+            stats.put("rejected", rejected);
+        }
+        finally {
+            lock.unlock();
+        }
+        return stats;
+    }
+
+    private boolean hasRoom(short priority, long size){
+        return inserts < maxInserts && bytes + size <= maxBytes
+                && classInserts[priority] < maxClassInserts[priority] && classBytes[priority] + size <= maxClassBytes[priority];
+    }
+
+    private void release(short priority, long size){
+        lock.lock();
+        try {
+            inserts--;
+            bytes -= size;
+            classInserts[priority]--;
+            classBytes[priority] -= size;
+            released.signalAll();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Permit is held by an admitted insert until it finishes
+     */
+    public class Permit {
+        private final short priority;
+        private final long size;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        private Permit(short priority, long size){
+            this.priority = priority;
+            this.size = size;
+        }
+
+        /**
+         * Gives the room of the insert back.
+         * Only the first call has an effect.
+         */
+        public void release(){
+            if (released.compareAndSet(false, true)){
+                InsertAdmission.this.release(priority, size);
+            }
+        }
+    }
+}
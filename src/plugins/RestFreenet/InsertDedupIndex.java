@@ -0,0 +1,211 @@
+package plugins.RestFreenet;
+
+import freenet.support.api.Bucket;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * An index from the content hash and the parameters of CHK inserts to their requestURIs.
+ * A CHK depends only on the inserted data and the insert parameters,
+ * so an insert found in the index does not have to be repeated.
+ * The index keeps the most recently used entries in memory
+ * and appends new entries to a file, if one is given, which is read back on startup
+ * and rewritten when it has grown to twice the entries kept.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class InsertDedupIndex {
+    private final File file; //The file the entries are kept in or null
+    private final LinkedHashMap<String, String> entries; //Index key => requestURI, in access order
+    private Writer writer;
+    private long appended = 0; //Entries appended to the file since it was last written
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Constructor
+     *
+     * @param file File : The file the entries are kept in or null for an index only in memory
+     * @param maxEntries int : The maximum number of entries
+     * @throws IOException
+     */
+    public InsertDedupIndex(File file, final int maxEntries) throws IOException{
+        this.file = file;
+        this.entries = new LinkedHashMap<String, String>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (file != null){
+            load();
+            rewrite();
+        }
+    }
+
+    /**
+     * Returns the index key of an insert
+     *
+     * @param data Bucket : The inserted data
+     * @param params String : The insert parameters that change the resulting key
+     * @return String : The hex SHA-256 of the data followed by the parameters
+     * @throws IOException
+     */
+    public static String key(Bucket data, String params) throws IOException{
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+        InputStream in = data.getInputStream();
+        try {
+            byte[] buffer = new byte[65536];
+            int read;
+            while ((read = in.read(buffer)) != -1){
+                digest.update(buffer, 0, read);
+            }
+        }
+        finally {
+            in.close();
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()){
+            key.append(String.format("%02x", b & 0xff));
+        }
+        return key.append('|').append(params).toString();
+    }
+
+    /**
+     * Returns the requestURI of an insert
+     *
+     * @param key String : The index key of the insert
+     * @return String : The requestURI or null if the insert is not in the index
+     */
+    public synchronized String get(String key){
+        String uri = entries.get(key);
+        if (uri == null){
+            misses++;
+        }
+        else {
+            hits++;
+        }
+        return uri;
+    }
+
+    /**
+     * Adds the requestURI of a finished insert
+     *
+     * @param key String : The index key of the insert
+     * @param uri String : The requestURI
+     */
+    public synchronized void put(String key, String uri){
+        if (uri.equals(entries.put(key, uri)) || writer == null){
+            return;
+        }
+        try {
+            writeEntry(writer, key, uri);
+            writer.flush();
+            if (++appended > 2L * Math.max(entries.size(), 1)){
+                rewrite();
+            }
+        }
+        catch (IOException e){
+            closeWriter();
+        }
+    }
+
+    /**
+     * Returns the statistics of the index
+     *
+     * @return Map<String, Number>
+     */
+    public synchronized Map<String, Number> getStats(){
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        stats.put("entries", entries.size());
+        stats.put("hits", hits);
+        stats.put("misses", misses);
+        return stats;
+    }
+
+    /**
+     * Closes the file of the index
+     */
+    public synchronized void close(){
+        closeWriter();
+    }
+
+    private void load() throws IOException{
+        if (!file.exists()){
+            return;
+        }
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null){
+                int tab = line.indexOf('\t');
+                if (tab > 0){
+                    entries.put(line.substring(0, tab), line.substring(tab + 1));
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Writes the entries in memory to a new file that replaces the old one
+     * and keeps it open for appending
+     */
+    private void rewrite() throws IOException{
+        closeWriter();
+        File temp = new File(file.getPath()+".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(temp), "UTF-8");
+        try {
+            for (Map.Entry<String, String> entry : entries.entrySet()){
+                writeEntry(out, entry.getKey(), entry.getValue());
+            }
+        }
+        finally {
+            out.close();
+        }
+        if (!temp.renameTo(file)){
+            temp.delete();
+            throw new IOException("Cannot write insert dedup index "+file);
+        }
+        writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+        appended = 0;
+    }
+
+    private static void writeEntry(Writer out, String key, String uri) throws IOException{
+        out.write(key);
+        out.write('\t');
+        out.write(uri);
+        out.write('\n');
+    }
+
+    private void closeWriter(){
+        if (writer == null){
+            return;
+        }
+        try {
+            writer.close();
+        }
+        catch (IOException e){
+        }
+        writer = null;
+    }
+}
@@ -0,0 +1,178 @@
+package plugins.RestFreenet;
+
+import freenet.support.api.Bucket;
+import freenet.support.api.RandomAccessBucket;
+import freenet.support.io.FileBucket;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import org.json.simple.JSONObject;
+import org.json.simple.parser.JSONParser;
+import org.json.simple.parser.ParseException;
+
+/**
+ * A journal of the persistent inserts on local disk.
+ * Every entry is a data file holding the inserted content
+ * and a json file holding the parameters of the insert, both named by the job id.
+ * The data file is written and synced before the json file is renamed into place,
+ * so an entry with a json file always has its complete data.
+ * Entries are removed when their insert finishes,
+ * so the entries found on startup are the inserts that have to be resumed.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class InsertJournal {
+    private static final String DATA_SUFFIX = ".data";
+    private static final String ENTRY_SUFFIX = ".json";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private final File dir;
+
+    /**
+     * Constructor
+     *
+     * @param dir File : The directory of the journal, created if it does not exist
+     * @throws IOException
+     */
+    public InsertJournal(File dir) throws IOException{
+        if (!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Cannot create insert journal directory "+dir);
+        }
+        this.dir = dir;
+    }
+
+    /**
+     * Writes an entry
+     *
+     * @param jobId String : The id of the insert job
+     * @param data Bucket : The inserted content
+     * @param params JSONObject : The parameters of the insert
+     * @return RandomAccessBucket : The journaled content, not deleted when freed
+     * @throws IOException
+     */
+    public RandomAccessBucket write(String jobId, Bucket data, JSONObject params) throws IOException{
+        File dataFile = new File(dir, jobId+DATA_SUFFIX);
+        File tempFile = new File(dir, jobId+ENTRY_SUFFIX+TEMP_SUFFIX);
+        try {
+            InputStream in = data.getInputStream();
+            try {
+                writeSynced(dataFile, in);
+            }
+            finally {
+                in.close();
+            }
+            writeSynced(tempFile, new ByteArrayInputStream(params.toJSONString().getBytes("UTF-8")));
+            if (!tempFile.renameTo(new File(dir, jobId+ENTRY_SUFFIX))){
+                throw new IOException("Cannot write insert journal entry "+jobId);
+            }
+        }
+        catch (IOException e){
+            tempFile.delete();
+            dataFile.delete();
+            throw e;
+        }
+        return open(jobId);
+    }
+
+    /**
+     * Opens the journaled content of an entry
+     *
+     * @param jobId String : The id of the insert job
+     * @return RandomAccessBucket : The journaled content, not deleted when freed
+     */
+    public RandomAccessBucket open(String jobId){
+        return new FileBucket(new File(dir, jobId+DATA_SUFFIX), true, false, false, false);
+    }
+
+    /**
+     * Removes an entry
+     *
+     * @param jobId String : The id of the insert job
+     */
+    public void remove(String jobId){
+        new File(dir, jobId+ENTRY_SUFFIX).delete();
+        new File(dir, jobId+DATA_SUFFIX).delete();
+    }
+
+    /**
+     * Reads the entries of the journal.
+     * Unreadable entries and files left by an interrupted write are deleted.
+     *
+     * @return List<JSONObject> : The parameters of the entries with their job id as jobId
+     */
+    public List<JSONObject> load(){
+        List<JSONObject> entries = new ArrayList<JSONObject>();
+        File[] files = dir.listFiles();
+        if (files == null){
+            return entries;
+        }
+        for (File file : files){
+            String name = file.getName();
+            if (name.endsWith(TEMP_SUFFIX)){
+                file.delete();
+            }
+            else if (name.endsWith(DATA_SUFFIX)){
+                String jobId = name.substring(0, name.length() - DATA_SUFFIX.length());
+                if (!new File(dir, jobId+ENTRY_SUFFIX).exists()){
+                    file.delete();
+                }
+            }
+            else if (name.endsWith(ENTRY_SUFFIX)){
+                String jobId = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                JSONObject entry = read(file);
+                if (entry == null || !new File(dir, jobId+DATA_SUFFIX).exists()){
+                    remove(jobId);
+                    continue;
+                }
+                entry.put("jobId", jobId);
+                entries.add(entry);
+            }
+        }
+        return entries;
+    }
+
+    private static JSONObject read(File file){
+        try {
+            InputStreamReader reader = new InputStreamReader(new FileInputStream(file), "UTF-8");
+            try {
+                Object entry = new JSONParser().parse(reader);
+                return entry instanceof JSONObject ? (JSONObject)entry : null;
+            }
+            finally {
+                reader.close();
+            }
+        }
+        catch (IOException e){
+            return null;
+        }
+        catch (ParseException e){
+            return null;
+        }
+    }
+
+    private static void writeSynced(File file, InputStream in) throws IOException{
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            copy(in, out);
+            out.flush();
+            out.getFD().sync();
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException{
+        byte[] buffer = new byte[65536];
+        int read;
+        while ((read = in.read(buffer)) != -1){
+            out.write(buffer, 0, read);
+        }
+    }
+}
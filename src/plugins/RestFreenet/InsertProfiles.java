@@ -0,0 +1,188 @@
+package plugins.RestFreenet;
+
+import freenet.client.InsertContext;
+import freenet.client.events.SimpleEventProducer;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Named sets of insert settings chosen per request, e.g. a throughput tuned profile for bulk inserts
+ * and a latency tuned one for small interactive inserts.
+ * The context of every profile is built once from the node's insert context and the configured settings,
+ * and is never handed out, so every insert gets its own copy to add its event listener and compression to.
+ * The profile named default holds the node's settings unless it is configured too.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class InsertProfiles {
+    public static final String DEFAULT = "default";
+    private final Map<String, Profile> profiles;
+
+    /**
+     * Profile is a named set of insert settings
+     */
+    public static class Profile {
+        private final String name;
+        private final InsertContext context; //The template copied for every insert
+        private final short priority; //The default priority class of the inserts, -1 if not set
+        private final Boolean realtime; //If the inserts are realtime by default, null if not set
+
+        private Profile(String name, InsertContext context, short priority, Boolean realtime){
+            this.name = name;
+            this.context = context;
+            this.priority = priority;
+            this.realtime = realtime;
+        }
+
+        public String getName(){
+            return name;
+        }
+
+        /**
+         * Returns a new insert context with the settings of the profile
+         *
+         * @return InsertContext
+         */
+        public InsertContext newContext(){
+            return new InsertContext(context, new SimpleEventProducer());
+        }
+
+        /**
+         * Returns the priority class of an insert that does not ask for one
+         *
+         * @param defaultPriority short : The priority used if the profile does not set one
+         * @return short
+         */
+        public short getPriority(short defaultPriority){
+            return priority >= 0 ? priority : defaultPriority;
+        }
+
+        /**
+         * Returns if an insert that does not say is realtime
+         *
+         * @return boolean : false if the profile does not set it
+         */
+        public boolean isRealtime(){
+            return Boolean.TRUE.equals(realtime);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param nodeContext InsertContext : The node's insert context the profiles start from
+     * @param config Map<?, ?> : Profile name => settings, may be null.
+     * The settings are priority, realtime, maxInsertRetries, consecutiveRNFsCountAsSuccess,
+     * splitfileSegmentDataBlocks, splitfileSegmentCheckBlocks, extraInsertsSingleBlock,
+     * extraInsertsSplitfileHeaderBlock, canWriteClientCache, localRequestOnly, earlyEncode and compatibilityMode.
+     * @throws IllegalArgumentException if a profile or a setting is not valid
+     */
+    public InsertProfiles(InsertContext nodeContext, Map<?, ?> config){
+        Map<String, Profile> built = new LinkedHashMap<String, Profile>();
+        built.put(DEFAULT, new Profile(DEFAULT, new InsertContext(nodeContext, new SimpleEventProducer()), (short)-1, null));
+        if (config != null){
+            for (Map.Entry<?, ?> entry : config.entrySet()){
+                String name = String.valueOf(entry.getKey());
+                if (!(entry.getValue() instanceof Map)){
+                    throw new IllegalArgumentException("Insert profile "+name+" is not an object");
+                }
+                built.put(name, build(name, nodeContext, (Map<?, ?>)entry.getValue()));
+            }
+        }
+        this.profiles = Collections.unmodifiableMap(built);
+    }
+
+    /**
+     * Returns a profile
+     *
+     * @param name String : The name of the profile, null or empty for the default profile
+     * @return Profile : The profile or null if there is no profile with that name
+     */
+    public Profile get(String name){
+        return profiles.get(name == null || name.isEmpty() ? DEFAULT : name);
+    }
+
+    /**
+     * Returns the names of the profiles
+     *
+     * @return Set<String>
+     */
+    public Set<String> getNames(){
+        return profiles.keySet();
+    }
+
+    private static Profile build(String name, InsertContext nodeContext, Map<?, ?> settings){
+        InsertContext context = new InsertContext(nodeContext, new SimpleEventProducer());
+        short priority = -1;
+        Boolean realtime = null;
+        for (Map.Entry<?, ?> entry : settings.entrySet()){
+            String setting = String.valueOf(entry.getKey());
+            Object value = entry.getValue();
+            try {
+                if (setting.equals("priority")){
+                    priority = (short)intValue(value);
+                }
+                else if (setting.equals("realtime")){
+                    realtime = booleanValue(value);
+                }
+                else if (setting.equals("maxInsertRetries")){
+                    context.maxInsertRetries = intValue(value);
+                }
+                else if (setting.equals("consecutiveRNFsCountAsSuccess")){
+                    context.consecutiveRNFsCountAsSuccess = intValue(value);
+                }
+                else if (setting.equals("splitfileSegmentDataBlocks")){
+                    context.splitfileSegmentDataBlocks = intValue(value);
+                }
+                else if (setting.equals("splitfileSegmentCheckBlocks")){
+                    context.splitfileSegmentCheckBlocks = intValue(value);
+                }
+                else if (setting.equals("extraInsertsSingleBlock")){
+                    context.extraInsertsSingleBlock = intValue(value);
+                }
+                else if (setting.equals("extraInsertsSplitfileHeaderBlock")){
+                    context.extraInsertsSplitfileHeaderBlock = intValue(value);
+                }
+                else if (setting.equals("canWriteClientCache")){
+                    context.canWriteClientCache = booleanValue(value);
+                }
+                else if (setting.equals("localRequestOnly")){
+                    context.localRequestOnly = booleanValue(value);
+                }
+                else if (setting.equals("earlyEncode")){
+                    context.earlyEncode = booleanValue(value);
+                }
+                else if (setting.equals("compatibilityMode")){
+                    context.setCompatibilityMode(InsertContext.CompatibilityMode.valueOf(String.valueOf(value)));
+                }
+                else {
+                    throw new IllegalArgumentException("Unknown setting");
+                }
+            }
+            catch (IllegalArgumentException e){
+                throw new IllegalArgumentException("Invalid setting "+setting+" of insert profile "+name+": "+e.getMessage());
+            }
+        }
+        return new Profile(name, context, priority, realtime);
+    }
+
+    private static int intValue(Object value){
+        if (!(value instanceof Number)){
+            throw new IllegalArgumentException("Not a number");
+        }
+        long number = ((Number)value).longValue();
+        if (number < 0 || number > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Out of range");
+        }
+        return (int)number;
+    }
+
+    private static boolean booleanValue(Object value){
+        if (!(value instanceof Boolean)){
+            throw new IllegalArgumentException("Not true or false");
+        }
+        return (Boolean)value;
+    }
+}
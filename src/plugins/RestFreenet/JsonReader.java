@@ -0,0 +1,422 @@
+package plugins.RestFreenet;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * A streaming reader of JSON text.
+ * The values are read one at a time from UTF-8 bytes, without building a tree,
+ * so a handler reads the members it needs and skips the rest.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class JsonReader {
+    public static final int BEGIN_OBJECT = 1;
+    public static final int END_OBJECT = 2;
+    public static final int BEGIN_ARRAY = 3;
+    public static final int END_ARRAY = 4;
+    public static final int STRING = 5;
+    public static final int NUMBER = 6;
+    public static final int BOOLEAN = 7;
+    public static final int NULL = 8;
+    public static final int END_DOCUMENT = 9;
+    private static final int MAX_DEPTH = 64;
+    private static final int IN_OBJECT = 0;
+    private static final int IN_ARRAY = 1;
+    private static final int[] UTF8_MIN_CODE_POINT = {0, 0x80, 0x800, 0x10000}; //The smallest code point of each sequence length
+    private final InputStream in;
+    private final byte[] buffer = new byte[4096];
+    private int position = 0;
+    private int limit = 0;
+    private final StringBuilder text = new StringBuilder(); //Reused for strings and numbers
+    private final int[] containers = new int[MAX_DEPTH]; //IN_OBJECT or IN_ARRAY by depth
+    private final int[] counts = new int[MAX_DEPTH]; //The members or elements read by depth
+    private int depth = 0;
+    private boolean afterName = false; //If a member name was read and its value is next
+
+    /**
+     * SyntaxException is thrown for content that is not valid JSON
+     */
+    public static class SyntaxException extends IOException {
+        public SyntaxException(String message){
+            super(message);
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param in InputStream : The UTF-8 JSON text
+     */
+    public JsonReader(InputStream in){
+        this.in = in;
+    }
+
+    /**
+     * Returns the type of the next token without consuming it
+     *
+     * @return int : One of the token constants
+     * @throws IOException
+     */
+    public int peek() throws IOException{
+        if (!hasNext()){
+            if (depth == 0){
+                return END_DOCUMENT;
+            }
+            return containers[depth - 1] == IN_OBJECT ? END_OBJECT : END_ARRAY;
+        }
+        int c = peekChar();
+        switch (c){
+            case '{': return BEGIN_OBJECT;
+            case '[': return BEGIN_ARRAY;
+            case '"': return STRING;
+            case 't': case 'f': return BOOLEAN;
+            case 'n': return NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')){
+                    return NUMBER;
+                }
+                throw new SyntaxException("Unexpected character "+(char)c);
+        }
+    }
+
+    /**
+     * Returns true if the current object or array has more members or elements.
+     * Consumes the comma before the next one.
+     *
+     * @return boolean
+     * @throws IOException
+     */
+    public boolean hasNext() throws IOException{
+        int c = peekChar();
+        if (depth == 0){
+            return c != -1;
+        }
+        if (afterName){
+            return true;
+        }
+        if (c == '}' || c == ']'){
+            return false;
+        }
+        if (counts[depth - 1] > 0){
+            if (c != ','){
+                throw new SyntaxException("Expected , but found "+describe(c));
+            }
+            position++;
+            counts[depth - 1] = -counts[depth - 1]; //Negative until the member or element is read
+            c = peekChar();
+            if (c == '}' || c == ']'){
+                throw new SyntaxException("Unexpected "+(char)c+" after ,");
+            }
+        }
+        return c != -1;
+    }
+
+    public void beginObject() throws IOException{
+        beforeValue();
+        expect('{');
+        push(IN_OBJECT);
+    }
+
+    public void endObject() throws IOException{
+        end(IN_OBJECT, '}');
+    }
+
+    public void beginArray() throws IOException{
+        beforeValue();
+        expect('[');
+        push(IN_ARRAY);
+    }
+
+    public void endArray() throws IOException{
+        end(IN_ARRAY, ']');
+    }
+
+    /**
+     * Reads the name of the next member of an object
+     *
+     * @return String
+     * @throws IOException
+     */
+    public String nextName() throws IOException{
+        if (depth == 0 || containers[depth - 1] != IN_OBJECT || afterName || !hasNext()){
+            throw new SyntaxException("Expected a member name");
+        }
+        if (peekChar() != '"'){
+            throw new SyntaxException("Expected a member name but found "+describe(peekChar()));
+        }
+        String name = readString();
+        expect(':');
+        afterName = true;
+        return name;
+    }
+
+    /**
+     * Reads a string value
+     *
+     * @return String : The string or null for a null value
+     * @throws IOException
+     */
+    public String nextString() throws IOException{
+        beforeValue();
+        if (peekChar() == 'n'){
+            literal("null");
+            return null;
+        }
+        if (peekChar() != '"'){
+            throw new SyntaxException("Expected a string but found "+describe(peekChar()));
+        }
+        return readString();
+    }
+
+    /**
+     * Reads a number value
+     *
+     * @return Number : A Long for integers that fit, a Double otherwise
+     * @throws IOException
+     */
+    public Number nextNumber() throws IOException{
+        beforeValue();
+        text.setLength(0);
+        boolean integer = true;
+        int c = peekChar();
+        while (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9')){
+            if (c == '.' || c == 'e' || c == 'E'){
+                integer = false;
+            }
+            text.append((char)c);
+            position++;
+            c = peekRaw();
+        }
+        String number = text.toString();
+        try {
+            if (integer){
+                try {
+                    return Long.valueOf(number);
+                }
+                catch (NumberFormatException e){
+                    return Double.valueOf(number);
+                }
+            }
+            return Double.valueOf(number);
+        }
+        catch (NumberFormatException e){
+            throw new SyntaxException("Invalid number "+number);
+        }
+    }
+
+    public boolean nextBoolean() throws IOException{
+        beforeValue();
+        if (peekChar() == 't'){
+            literal("true");
+            return true;
+        }
+        literal("false");
+        return false;
+    }
+
+    public void nextNull() throws IOException{
+        beforeValue();
+        literal("null");
+    }
+
+    /**
+     * Skips the next value, with all its members or elements
+     *
+     * @throws IOException
+     */
+    public void skipValue() throws IOException{
+        switch (peek()){
+            case BEGIN_OBJECT:
+                beginObject();
+                while (hasNext()){
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+                break;
+            case BEGIN_ARRAY:
+                beginArray();
+                while (hasNext()){
+                    skipValue();
+                }
+                endArray();
+                break;
+            case STRING:
+                nextString();
+                break;
+            case NUMBER:
+                nextNumber();
+                break;
+            case BOOLEAN:
+                nextBoolean();
+                break;
+            case NULL:
+                nextNull();
+                break;
+            default:
+                throw new SyntaxException("Expected a value");
+        }
+    }
+
+    /**
+     * Checks the place of a value and counts it in its container
+     */
+    private void beforeValue() throws IOException{
+        if (depth == 0){
+            return;
+        }
+        if (containers[depth - 1] == IN_OBJECT){
+            if (!afterName){
+                throw new SyntaxException("Expected a member name before a value");
+            }
+            afterName = false;
+        }
+        else if (!hasNext()){
+            throw new SyntaxException("Expected a value but found "+describe(peekChar()));
+        }
+        counts[depth - 1] = Math.abs(counts[depth - 1]) + 1;
+    }
+
+    private void push(int container) throws SyntaxException{
+        if (depth == MAX_DEPTH){
+            throw new SyntaxException("JSON nesting is too deep");
+        }
+        containers[depth] = container;
+        counts[depth] = 0;
+        depth++;
+    }
+
+    private void end(int container, char close) throws IOException{
+        if (depth == 0 || containers[depth - 1] != container || afterName || counts[depth - 1] < 0){
+            throw new SyntaxException("Unexpected "+close);
+        }
+        expect(close);
+        depth--;
+    }
+
+    private void expect(char expected) throws IOException{
+        int c = peekChar();
+        if (c != expected){
+            throw new SyntaxException("Expected "+expected+" but found "+describe(c));
+        }
+        position++;
+    }
+
+    private void literal(String literal) throws IOException{
+        peekChar();
+        for (int i=0; i<literal.length(); i++){
+            if (peekRaw() != literal.charAt(i)){
+                throw new SyntaxException("Expected "+literal);
+            }
+            position++;
+        }
+    }
+
+    /**
+     * Reads a string token decoding its escapes and its UTF-8 bytes
+     */
+    private String readString() throws IOException{
+        position++; //The opening quote
+        text.setLength(0);
+        while (true){
+            int b = nextRaw();
+            if (b == '"'){
+                return text.toString();
+            }
+            if (b == '\\'){
+                int escape = nextRaw();
+                switch (escape){
+                    case '"': text.append('"'); break;
+                    case '\\': text.append('\\'); break;
+                    case '/': text.append('/'); break;
+                    case 'b': text.append('\b'); break;
+                    case 'f': text.append('\f'); break;
+                    case 'n': text.append('\n'); break;
+                    case 'r': text.append('\r'); break;
+                    case 't': text.append('\t'); break;
+                    case 'u':
+                        int code = 0;
+                        for (int i=0; i<4; i++){
+                            int digit = Character.digit(nextRaw(), 16);
+                            if (digit < 0){
+                                throw new SyntaxException("Invalid \\u escape");
+                            }
+                            code = code * 16 + digit;
+                        }
+                        text.append((char)code);
+                        break;
+                    default:
+                        throw new SyntaxException("Invalid escape "+describe(escape));
+                }
+            }
+            else if (b < 0x20){
+                throw new SyntaxException(b == -1 ? "Unterminated string" : "Control character in string");
+            }
+            else if (b < 0x80){
+                text.append((char)b);
+            }
+            else {
+                int extra = b > 0xf4 ? -1 : b >= 0xf0 ? 3 : b >= 0xe0 ? 2 : b >= 0xc2 ? 1 : -1;
+                if (extra < 0){
+                    throw new SyntaxException("Invalid UTF-8");
+                }
+                int codePoint = b & (0x3f >> extra);
+                for (int i=0; i<extra; i++){
+                    int next = nextRaw();
+                    if ((next & 0xc0) != 0x80){
+                        throw new SyntaxException("Invalid UTF-8");
+                    }
+                    codePoint = (codePoint << 6) | (next & 0x3f);
+                }
+                /*Overlong encodings, surrogates and code points above U+10FFFF are not valid UTF-8*/
+                if (codePoint < UTF8_MIN_CODE_POINT[extra] || (codePoint >= 0xd800 && codePoint <= 0xdfff) || codePoint > 0x10ffff){
+                    throw new SyntaxException("Invalid UTF-8");
+                }
+                text.appendCodePoint(codePoint);
+            }
+        }
+    }
+
+    private static String describe(int c){
+        return c == -1 ? "end of content" : String.valueOf((char)c);
+    }
+
+    /**
+     * Returns the next character that is not whitespace without consuming it, -1 at the end
+     */
+    private int peekChar() throws IOException{
+        while (true){
+            int c = peekRaw();
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r'){
+                return c;
+            }
+            position++;
+        }
+    }
+
+    private int peekRaw() throws IOException{
+        if (position == limit && !fill()){
+            return -1;
+        }
+        return buffer[position] & 0xff;
+    }
+
+    private int nextRaw() throws IOException{
+        int c = peekRaw();
+        if (c != -1){
+            position++;
+        }
+        return c;
+    }
+
+    private boolean fill() throws IOException{
+        position = 0;
+        limit = in.read(buffer, 0, buffer.length);
+        if (limit <= 0){
+            limit = 0;
+            return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,434 @@
+package plugins.RestFreenet;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming writer of json values.
+ * The values are encoded as UTF-8 JSON text or as CBOR (RFC 7049)
+ * straight into a byte buffer, without building intermediate Strings,
+ * and the buffer is sent as it is.
+ * Every thread reuses its own writer and buffer.
+ * Objects and arrays are written with indefinite lengths in CBOR, so nothing has to be counted in advance.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class JsonWriter {
+    private static final int INITIAL_SIZE = 8192;
+    private static final int MAX_RETAINED_SIZE = 262144; //Larger buffers are not kept for reuse
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    private static final ThreadLocal<JsonWriter> WRITERS = new ThreadLocal<JsonWriter>(){
+        @Override
+        protected JsonWriter initialValue() {
+            return new JsonWriter();
+        }
+    };
+    private byte[] buffer = new byte[INITIAL_SIZE];
+    private int size = 0;
+    private boolean cbor = false;
+    private boolean needComma = false; //If a comma goes before the next JSON value or name
+
+    /**
+     * Returns the writer of the current thread, emptied
+     *
+     * @param cbor boolean : If the values are encoded as CBOR instead of JSON text
+     * @return JsonWriter
+     */
+    public static JsonWriter forThread(boolean cbor){
+        JsonWriter writer = WRITERS.get();
+        writer.reset(cbor);
+        return writer;
+    }
+
+    /**
+     * Empties the writer
+     *
+     * @param cbor boolean : If the values are encoded as CBOR instead of JSON text
+     * @return JsonWriter : This writer
+     */
+    public JsonWriter reset(boolean cbor){
+        if (buffer.length > MAX_RETAINED_SIZE){
+            buffer = new byte[INITIAL_SIZE];
+        }
+        this.cbor = cbor;
+        size = 0;
+        needComma = false;
+        return this;
+    }
+
+    public boolean isCbor(){
+        return cbor;
+    }
+
+    /**
+     * Returns the buffer holding the encoded values
+     * Only the first getSize() bytes are valid.
+     *
+     * @return byte[]
+     */
+    public byte[] getBuffer(){
+        return buffer;
+    }
+
+    public int getSize(){
+        return size;
+    }
+
+    public JsonWriter beginObject(){
+        if (cbor){
+            write(0xbf);
+        }
+        else {
+            separate();
+            write('{');
+            needComma = false;
+        }
+        return this;
+    }
+
+    public JsonWriter endObject(){
+        write(cbor ? 0xff : '}');
+        needComma = true;
+        return this;
+    }
+
+    public JsonWriter beginArray(){
+        if (cbor){
+            write(0x9f);
+        }
+        else {
+            separate();
+            write('[');
+            needComma = false;
+        }
+        return this;
+    }
+
+    public JsonWriter endArray(){
+        write(cbor ? 0xff : ']');
+        needComma = true;
+        return this;
+    }
+
+    /**
+     * Writes the name of the next member of an object
+     *
+     * @param name String : The name
+     * @return JsonWriter : This writer
+     */
+    public JsonWriter name(String name){
+        string(name);
+        if (!cbor){
+            write(':');
+            needComma = false;
+        }
+        return this;
+    }
+
+    public JsonWriter value(String value){
+        if (value == null){
+            return nullValue();
+        }
+        string(value);
+        return this;
+    }
+
+    public JsonWriter value(long value){
+        if (cbor){
+            if (value >= 0){
+                header(0, value);
+            }
+            else {
+                header(1, -1 - value);
+            }
+        }
+        else {
+            separate();
+            ascii(Long.toString(value));
+            needComma = true;
+        }
+        return this;
+    }
+
+    public JsonWriter value(double value){
+        if (Double.isNaN(value) || Double.isInfinite(value)){
+            return nullValue();
+        }
+        if (value == Math.rint(value) && Math.abs(value) < 1e15){
+            return value((long)value);
+        }
+        if (cbor){
+            write(0xfb);
+            long bits = Double.doubleToLongBits(value);
+            for (int shift=56; shift>=0; shift-=8){
+                write((int)(bits >>> shift));
+            }
+        }
+        else {
+            separate();
+            ascii(Double.toString(value));
+            needComma = true;
+        }
+        return this;
+    }
+
+    public JsonWriter value(boolean value){
+        if (cbor){
+            write(value ? 0xf5 : 0xf4);
+        }
+        else {
+            separate();
+            ascii(value ? "true" : "false");
+            needComma = true;
+        }
+        return this;
+    }
+
+    public JsonWriter nullValue(){
+        if (cbor){
+            write(0xf6);
+        }
+        else {
+            separate();
+            ascii("null");
+            needComma = true;
+        }
+        return this;
+    }
+
+    /**
+     * Writes a value of a json-simple tree or of plain Java objects:
+     * Maps, Lists, arrays of Objects, Strings, Numbers, Booleans and null.
+     * Any other object is written as its String form.
+     *
+     * @param value Object : The value
+     * @return JsonWriter : This writer
+     */
+    public JsonWriter value(Object value){
+        if (value == null){
+            return nullValue();
+        }
+        if (value instanceof String){
+            return value((String)value);
+        }
+        if (value instanceof Map){
+            beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>)value).entrySet()){
+                name(String.valueOf(entry.getKey()));
+                value(entry.getValue());
+            }
+            return endObject();
+        }
+        if (value instanceof List){
+            beginArray();
+            for (Object element : (List<?>)value){
+                value(element);
+            }
+            return endArray();
+        }
+        if (value instanceof Object[]){
+            return value(Arrays.asList((Object[])value));
+        }
+        if (value instanceof Double || value instanceof Float){
+            return value(((Number)value).doubleValue());
+        }
+        if (value instanceof Number){
+            return value(((Number)value).longValue());
+        }
+        if (value instanceof Boolean){
+            return value(((Boolean)value).booleanValue());
+        }
+        return value(value.toString());
+    }
+
+    /**
+     * Copies the next value of a reader, e.g. to re-encode JSON text as CBOR
+     *
+     * @param reader JsonReader : The reader
+     * @return JsonWriter : This writer
+     * @throws IOException
+     */
+    public JsonWriter value(JsonReader reader) throws IOException{
+        switch (reader.peek()){
+            case JsonReader.BEGIN_OBJECT:
+                reader.beginObject();
+                beginObject();
+                while (reader.hasNext()){
+                    name(reader.nextName());
+                    value(reader);
+                }
+                reader.endObject();
+                return endObject();
+            case JsonReader.BEGIN_ARRAY:
+                reader.beginArray();
+                beginArray();
+                while (reader.hasNext()){
+                    value(reader);
+                }
+                reader.endArray();
+                return endArray();
+            case JsonReader.STRING:
+                return value(reader.nextString());
+            case JsonReader.NUMBER:
+                return value(reader.nextNumber());
+            case JsonReader.BOOLEAN:
+                return value(reader.nextBoolean());
+            case JsonReader.NULL:
+                reader.nextNull();
+                return nullValue();
+            default:
+                throw new JsonReader.SyntaxException("Unexpected end of JSON value");
+        }
+    }
+
+    /**
+     * Appends a raw byte, e.g. the newline that ends a record of newline delimited JSON
+     *
+     * @param b int : The byte
+     * @return JsonWriter : This writer
+     */
+    public JsonWriter raw(int b){
+        write(b);
+        needComma = false;
+        return this;
+    }
+
+    private void separate(){
+        if (needComma){
+            write(',');
+        }
+    }
+
+    private void string(String value){
+        if (cbor){
+            header(3, utf8Length(value));
+            utf8(value, false);
+        }
+        else {
+            separate();
+            write('"');
+            utf8(value, true);
+            write('"');
+            needComma = true;
+        }
+    }
+
+    /**
+     * Writes the head of a CBOR data item
+     */
+    private void header(int major, long length){
+        int type = major << 5;
+        if (length < 24){
+            write(type | (int)length);
+        }
+        else if (length < 0x100){
+            write(type | 24);
+            write((int)length);
+        }
+        else if (length < 0x10000){
+            write(type | 25);
+            write((int)(length >>> 8));
+            write((int)length);
+        }
+        else if (length < 0x100000000L){
+            write(type | 26);
+            for (int shift=24; shift>=0; shift-=8){
+                write((int)(length >>> shift));
+            }
+        }
+        else {
+            write(type | 27);
+            for (int shift=56; shift>=0; shift-=8){
+                write((int)(length >>> shift));
+            }
+        }
+    }
+
+    private static int utf8Length(String value){
+        int length = 0;
+        for (int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            if (c < 0x80){
+                length++;
+            }
+            else if (c < 0x800){
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Writes a String as UTF-8, escaped for JSON text if asked
+     */
+    private void utf8(String value, boolean escape){
+        ensure(value.length() * 6);
+        for (int i=0; i<value.length(); i++){
+            char c = value.charAt(i);
+            if (escape && (c < 0x20 || c == '"' || c == '\\')){
+                buffer[size++] = '\\';
+                switch (c){
+                    case '"': buffer[size++] = '"'; break;
+                    case '\\': buffer[size++] = '\\'; break;
+                    case '\n': buffer[size++] = 'n'; break;
+                    case '\r': buffer[size++] = 'r'; break;
+                    case '\t': buffer[size++] = 't'; break;
+                    case '\b': buffer[size++] = 'b'; break;
+                    case '\f': buffer[size++] = 'f'; break;
+                    default:
+                        buffer[size++] = 'u';
+                        buffer[size++] = '0';
+                        buffer[size++] = '0';
+                        buffer[size++] = HEX[c >> 4];
+                        buffer[size++] = HEX[c & 0xf];
+                }
+            }
+            else if (c < 0x80){
+                buffer[size++] = (byte)c;
+            }
+            else if (c < 0x800){
+                buffer[size++] = (byte)(0xc0 | (c >> 6));
+                buffer[size++] = (byte)(0x80 | (c & 0x3f));
+            }
+            else if (Character.isHighSurrogate(c) && i + 1 < value.length() && Character.isLowSurrogate(value.charAt(i + 1))){
+                int codePoint = Character.toCodePoint(c, value.charAt(++i));
+                buffer[size++] = (byte)(0xf0 | (codePoint >> 18));
+                buffer[size++] = (byte)(0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[size++] = (byte)(0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[size++] = (byte)(0x80 | (codePoint & 0x3f));
+            }
+            else {
+                buffer[size++] = (byte)(0xe0 | (c >> 12));
+                buffer[size++] = (byte)(0x80 | ((c >> 6) & 0x3f));
+                buffer[size++] = (byte)(0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void ascii(String value){
+        ensure(value.length());
+        for (int i=0; i<value.length(); i++){
+            buffer[size++] = (byte)value.charAt(i);
+        }
+    }
+
+    private void write(int b){
+        ensure(1);
+        buffer[size++] = (byte)b;
+    }
+
+    private void ensure(int length){
+        if (size + length > buffer.length){
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + length));
+        }
+    }
+}
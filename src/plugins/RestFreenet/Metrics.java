@@ -0,0 +1,264 @@
+package plugins.RestFreenet;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Low overhead metrics of the plugin exported in the Prometheus text format.
+ * Counters and histogram buckets are LongAdders and gauges are AtomicLongs,
+ * so recording never takes a lock.
+ * Metrics are identified by name and a label string built with label().
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class Metrics {
+    /*Upper bounds of the latency histogram buckets in seconds*/
+    private static final double[] BOUNDS = {0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5,
+        1, 2.5, 5, 10, 30, 60, 120, 300, 600, 1800};
+
+    private final ConcurrentMap<String, Counter> counters;
+    private final ConcurrentMap<String, Gauge> gauges;
+    private final ConcurrentMap<String, Histogram> histograms;
+    private final ThreadLocal<int[]> replyStatus; //The status code of the reply sent by the current thread
+
+    /**
+     * Constructor
+     */
+    public Metrics(){
+        this.counters = new ConcurrentSkipListMap<String, Counter>();
+        this.gauges = new ConcurrentSkipListMap<String, Gauge>();
+        this.histograms = new ConcurrentSkipListMap<String, Histogram>();
+        this.replyStatus = new ThreadLocal<int[]>(){
+            @Override
+            protected int[] initialValue() {
+                return new int[1];
+            }
+        };
+    }
+
+    /**
+     * Builds a label
+     *
+     * @param name String : The label name
+     * @param value String : The label value
+     * @return String : name="value" with the value escaped
+     */
+    public static String label(String name, String value){
+        String escaped = String.valueOf(value).replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+        return name+"=\""+escaped+"\"";
+    }
+
+    /**
+     * Adds to a counter
+     *
+     * @param name String : The metric name
+     * @param labels String : The labels, empty for none
+     * @param n long : The amount to add
+     */
+    public void increment(String name, String labels, long n){
+        String key = key(name, labels);
+        Counter counter = counters.get(key);
+        if (counter == null){
+            Counter created = new Counter(name, labels);
+            counter = counters.putIfAbsent(key, created);
+            if (counter == null){
+                counter = created;
+            }
+        }
+        counter.value.add(n);
+    }
+
+    /**
+     * Adds to a gauge
+     *
+     * @param name String : The metric name
+     * @param labels String : The labels, empty for none
+     * @param delta long : The amount to add, negative to subtract
+     */
+    public void gaugeAdd(String name, String labels, long delta){
+        String key = key(name, labels);
+        Gauge gauge = gauges.get(key);
+        if (gauge == null){
+            Gauge created = new Gauge(name, labels);
+            gauge = gauges.putIfAbsent(key, created);
+            if (gauge == null){
+                gauge = created;
+            }
+        }
+        gauge.value.addAndGet(delta);
+    }
+
+    /**
+     * Records a duration in a latency histogram
+     *
+     * @param name String : The metric name
+     * @param labels String : The labels, empty for none
+     * @param nanos long : The duration in nanoseconds
+     */
+    public void observe(String name, String labels, long nanos){
+        String key = key(name, labels);
+        Histogram histogram = histograms.get(key);
+        if (histogram == null){
+            Histogram created = new Histogram(name, labels);
+            histogram = histograms.putIfAbsent(key, created);
+            if (histogram == null){
+                histogram = created;
+            }
+        }
+        histogram.observe(nanos);
+    }
+
+    /**
+     * Records the status code of the reply sent by the current thread
+     *
+     * @param code int : The status code
+     */
+    public void setReplyStatus(int code){
+        replyStatus.get()[0] = code;
+    }
+
+    /**
+     * Returns and clears the status code of the reply sent by the current thread
+     *
+     * @return int : The status code or 0 if no reply was sent
+     */
+    public int takeReplyStatus(){
+        int[] status = replyStatus.get();
+        int code = status[0];
+        status[0] = 0;
+        return code;
+    }
+
+    /**
+     * Writes all metrics in the Prometheus text format
+     *
+     * @param out StringBuilder : The output
+     */
+    public void write(StringBuilder out){
+        String last = null;
+        for (Counter counter : counters.values()){
+            last = writeType(out, counter.name, "counter", last);
+            writeSample(out, counter.name, counter.labels, null, counter.value.sum());
+        }
+        last = null;
+        for (Gauge gauge : gauges.values()){
+            last = writeType(out, gauge.name, "gauge", last);
+            writeSample(out, gauge.name, gauge.labels, null, gauge.value.get());
+        }
+        last = null;
+        for (Histogram histogram : histograms.values()){
+            last = writeType(out, histogram.name, "histogram", last);
+            histogram.write(out);
+        }
+    }
+
+    /**
+     * Writes a set of statistics as gauges in the Prometheus text format
+     *
+     * @param out StringBuilder : The output
+     * @param prefix String : The prefix of the metric names
+     * @param stats Map<String, Number> : Statistic name in camel case => value
+     */
+    public static void writeGauges(StringBuilder out, String prefix, Map<String, Number> stats){
+        Iterator<Map.Entry<String, Number>> it = stats.entrySet().iterator();
+        while (it.hasNext()){
+            Map.Entry<String, Number> stat = it.next();
+            String name = prefix+stat.getKey().replaceAll("([A-Z])", "_$1").toLowerCase();
+            writeType(out, name, "gauge", null);
+            writeSample(out, name, "", null, stat.getValue());
+        }
+    }
+
+    private static String key(String name, String labels){
+        return labels.isEmpty() ? name : name+"{"+labels+"}";
+    }
+
+    private static String writeType(StringBuilder out, String name, String type, String last){
+        if (!name.equals(last)){
+            out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+        }
+        return name;
+    }
+
+    private static void writeSample(StringBuilder out, String name, String labels, String extraLabel, Number value){
+        out.append(name);
+        if (!labels.isEmpty() || extraLabel != null){
+            out.append('{').append(labels);
+            if (extraLabel != null){
+                if (!labels.isEmpty()){
+                    out.append(',');
+                }
+                out.append(extraLabel);
+            }
+            out.append('}');
+        }
+        out.append(' ').append(value).append('\n');
+    }
+
+    private static class Counter {
+        final String name;
+        final String labels;
+        final LongAdder value = new LongAdder();
+
+        Counter(String name, String labels){
+            this.name = name;
+            this.labels = labels;
+        }
+    }
+
+    private static class Gauge {
+        final String name;
+        final String labels;
+        final AtomicLong value = new AtomicLong();
+
+        Gauge(String name, String labels){
+            this.name = name;
+            this.labels = labels;
+        }
+    }
+
+    /**
+     * Histogram counts durations in buckets of exponentially growing bounds
+     */
+    private static class Histogram {
+        final String name;
+        final String labels;
+        final LongAdder[] buckets; //Non cumulative counts, the last one is for durations above all bounds
+        final LongAdder sumNanos = new LongAdder();
+
+        Histogram(String name, String labels){
+            this.name = name;
+            this.labels = labels;
+            this.buckets = new LongAdder[BOUNDS.length + 1];
+            for (int i=0; i<buckets.length; i++){
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void observe(long nanos){
+            double seconds = nanos / 1e9;
+            int i = 0;
+            while (i < BOUNDS.length && seconds > BOUNDS[i]){
+                i++;
+            }
+            buckets[i].increment();
+            sumNanos.add(nanos);
+        }
+
+        void write(StringBuilder out){
+            long cumulative = 0;
+            for (int i=0; i<BOUNDS.length; i++){
+                cumulative += buckets[i].sum();
+                writeSample(out, name+"_bucket", labels, label("le", String.valueOf(BOUNDS[i])), cumulative);
+            }
+            cumulative += buckets[BOUNDS.length].sum();
+            writeSample(out, name+"_bucket", labels, label("le", "+Inf"), cumulative);
+            writeSample(out, name+"_sum", labels, null, sumNanos.sum() / 1e9);
+            writeSample(out, name+"_count", labels, null, cumulative);
+        }
+    }
+}
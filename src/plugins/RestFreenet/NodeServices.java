@@ -0,0 +1,133 @@
+package plugins.RestFreenet;
+
+import freenet.client.HighLevelSimpleClient;
+import freenet.client.async.ClientContext;
+import freenet.client.async.USKCallback;
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.crypt.RandomSource;
+import freenet.keys.USK;
+import freenet.node.Node;
+import freenet.node.RequestClient;
+import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.pluginmanager.PluginRespirator;
+import freenet.support.Executor;
+import freenet.support.Ticker;
+import freenet.support.api.BucketFactory;
+
+/**
+ * The services of the node used by the Toadlet.
+ * The Toadlet gets everything it needs from the node through this class,
+ * so it can also run on stand-in services without a running node, e.g. in the load test harness.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class NodeServices {
+    public final HighLevelSimpleClient client;
+    public final Executor executor;
+    public final Ticker ticker;
+    public final RandomSource random;
+    public final BucketFactory tempBucketFactory; //Creates the buckets for inserted data
+    public final ClientContext clientContext; //Starts and cancels client requests
+    public final PluginConnector pluginConnector; //Opens FCP connections to other plugins
+    public final USKTracker uskTracker; //Follows the editions of USKs
+
+    /**
+     * PluginConnector opens FCP connections to other plugins
+     */
+    public interface PluginConnector {
+        /**
+         * Opens a connection to a plugin
+         *
+         * @param pluginName String : The name of the plugin
+         * @param handler ClientSideFCPMessageHandler : Receives the messages of the plugin
+         * @return FCPPluginConnection
+         * @throws PluginNotFoundException
+         */
+        FCPPluginConnection connect(String pluginName, ClientSideFCPMessageHandler handler) throws PluginNotFoundException;
+    }
+
+    /**
+     * USKTracker follows the editions of USKs
+     */
+    public interface USKTracker {
+        /**
+         * Subscribes to the editions of a USK.
+         * The latest edition already known is reported right away, newer ones as they are found.
+         *
+         * @param usk USK : The USK, its edition is where the search for newer editions starts
+         * @param callback USKCallback : Receives the editions found
+         */
+        void subscribe(USK usk, USKCallback callback);
+
+        /**
+         * Stops a subscription
+         *
+         * @param usk USK : The USK
+         * @param callback USKCallback : The callback of the subscription
+         */
+        void unsubscribe(USK usk, USKCallback callback);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param client HighLevelSimpleClient : The client used for inserts and fetches
+     * @param executor Executor : Runs background jobs
+     * @param ticker Ticker : Runs delayed jobs
+     * @param random RandomSource : The random source used for key generation
+     * @param tempBucketFactory BucketFactory : Creates the buckets for inserted data
+     * @param clientContext ClientContext : Starts and cancels client requests
+     * @param pluginConnector PluginConnector : Opens FCP connections to other plugins
+     * @param uskTracker USKTracker : Follows the editions of USKs
+     */
+    public NodeServices(HighLevelSimpleClient client, Executor executor, Ticker ticker, RandomSource random,
+            BucketFactory tempBucketFactory, ClientContext clientContext, PluginConnector pluginConnector, USKTracker uskTracker){
+        this.client = client;
+        this.executor = executor;
+        this.ticker = ticker;
+        this.random = random;
+        this.tempBucketFactory = tempBucketFactory;
+        this.clientContext = clientContext;
+        this.pluginConnector = pluginConnector;
+        this.uskTracker = uskTracker;
+    }
+
+    /**
+     * Returns the services of the node the plugin runs on
+     *
+     * @param pr PluginRespirator : The plugin respirator
+     * @return NodeServices
+     */
+    public static NodeServices fromRespirator(final PluginRespirator pr){
+        final Node node = pr.getNode();
+        final RequestClient uskClient = new RequestClient() {
+            @Override
+            public boolean persistent() {
+                return false;
+            }
+
+            @Override
+            public boolean realTimeFlag() {
+                return false;
+            }
+        };
+        return new NodeServices(pr.getHLSimpleClient(), node.executor, node.ticker, node.random,
+                node.clientCore.tempBucketFactory, node.clientCore.clientContext, new PluginConnector() {
+            @Override
+            public FCPPluginConnection connect(String pluginName, ClientSideFCPMessageHandler handler) throws PluginNotFoundException {
+                return pr.connectToOtherPlugin(pluginName, handler);
+            }
+        }, new USKTracker() {
+            @Override
+            public void subscribe(USK usk, USKCallback callback) {
+                node.clientCore.uskManager.subscribe(usk, callback, true, uskClient);
+            }
+
+            @Override
+            public void unsubscribe(USK usk, USKCallback callback) {
+                node.clientCore.uskManager.unsubscribe(usk, callback);
+            }
+        });
+    }
+}
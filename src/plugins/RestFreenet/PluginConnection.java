@@ -0,0 +1,214 @@
+package plugins.RestFreenet;
+
+import freenet.clients.fcp.FCPPluginConnection;
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
+import freenet.pluginmanager.PluginNotFoundException;
+import freenet.support.SimpleFieldSet;
+import freenet.support.Ticker;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiConsumer;
+
+/**
+ * A long lived FCP connection to another plugin shared by all requests.
+ * Messages are sent over a single FCPPluginConnection and the replies
+ * complete the futures of the calls by the message identifier.
+ * Every call has a deadline, a call that gets no reply in time fails with a TimeoutException.
+ * If the other plugin is reloaded the connection is opened again.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class PluginConnection implements ClientSideFCPMessageHandler {
+    private final NodeServices.PluginConnector connector;
+    private final String pluginName;
+    private final Map<String, CompletableFuture<FCPPluginMessage>> pending; //Calls waiting for a reply by message identifier
+    private final Ticker ticker;
+    private final Metrics metrics;
+    private FCPPluginConnection connection;
+
+    /**
+     * Constructor
+     *
+     * @param connector NodeServices.PluginConnector : Opens the connection to the plugin
+     * @param ticker Ticker : Expires the calls that get no reply in time
+     * @param pluginName String : The name of the plugin to connect to
+     * @param metrics Metrics : Records the call latencies
+     */
+    public PluginConnection(NodeServices.PluginConnector connector, Ticker ticker, String pluginName, Metrics metrics){
+        this.connector = connector;
+        this.ticker = ticker;
+        this.pluginName = pluginName;
+        this.metrics = metrics;
+        this.pending = new ConcurrentHashMap<String, CompletableFuture<FCPPluginMessage>>();
+    }
+
+    /**
+     * Sends a message with the given params to the plugin.
+     * The returned future is completed with the reply, 
+     * or exceptionally with a TimeoutException if no reply arrives before the deadline.
+     * Cancelling the future drops the call.
+     *
+     * @param params SimpleFieldSet : The params of the message
+     * @param timeout long : The deadline of the call in milliseconds
+     * @return CompletableFuture<FCPPluginMessage> : The reply
+     */
+    public CompletableFuture<FCPPluginMessage> callAsync(SimpleFieldSet params, final long timeout){
+        final FCPPluginMessage message = FCPPluginMessage.construct(params, null);
+        final CompletableFuture<FCPPluginMessage> reply = new CompletableFuture<FCPPluginMessage>();
+        final String action = params.get("action");
+        final long start = System.nanoTime();
+        final Runnable expire = new Runnable() {
+            @Override
+            public void run() {
+                reply.completeExceptionally(timeoutException(action, timeout));
+            }
+        };
+        pending.put(message.identifier, reply);
+        reply.whenComplete(new BiConsumer<FCPPluginMessage, Throwable>() {
+            @Override
+            public void accept(FCPPluginMessage returned, Throwable error) {
+                pending.remove(message.identifier, reply);
+                ticker.removeQueuedJob(expire);
+                String outcome;
+                if (error == null){
+                    outcome = returned.success ? "success" : "failure";
+                }
+                else if (error instanceof TimeoutException){
+                    outcome = "timeout";
+                }
+                else if (error instanceof CancellationException){
+                    outcome = "cancelled";
+                }
+                else {
+                    outcome = "error";
+                }
+                metrics.observe("restfreenet_fcp_call_duration_seconds", Metrics.label("plugin", pluginName)+","
+                        +Metrics.label("action", action)+","+Metrics.label("outcome", outcome), System.nanoTime() - start);
+            }
+        });
+        ticker.queueTimedJob(expire, timeout);
+        try {
+            send(message);
+        }
+        catch (Exception e){
+            reply.completeExceptionally(e);
+        }
+        return reply;
+    }
+
+    /**
+     * Sends a message with the given params to the plugin and waits for the reply 
+     * no longer than the deadline
+     *
+     * @param params SimpleFieldSet : The params of the message
+     * @param timeout long : The deadline of the call in milliseconds
+     * @return FCPPluginMessage : The reply
+     * @throws PluginNotFoundException
+     * @throws IOException
+     * @throws InterruptedException
+     * @throws TimeoutException : If no reply arrived before the deadline
+     */
+    public FCPPluginMessage call(SimpleFieldSet params, long timeout) throws PluginNotFoundException, IOException, InterruptedException, TimeoutException{
+        CompletableFuture<FCPPluginMessage> reply = callAsync(params, timeout);
+        try {
+            return reply.get(timeout, TimeUnit.MILLISECONDS);
+        }
+        catch (InterruptedException e){
+            reply.cancel(false);
+            throw e;
+        }
+        catch (TimeoutException e){
+            /*The ticker has not expired the call yet*/
+            TimeoutException timeoutException = timeoutException(params.get("action"), timeout);
+            reply.completeExceptionally(timeoutException);
+            throw timeoutException;
+        }
+        catch (ExecutionException e){
+            Throwable cause = e.getCause();
+            if (cause instanceof TimeoutException){
+                throw (TimeoutException)cause;
+            }
+            if (cause instanceof PluginNotFoundException){
+                throw (PluginNotFoundException)cause;
+            }
+            if (cause instanceof IOException){
+                throw (IOException)cause;
+            }
+            if (cause instanceof RuntimeException){
+                throw (RuntimeException)cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private TimeoutException timeoutException(String action, long timeout){
+        return new TimeoutException(pluginName+" did not reply to "+action+" within "+timeout+" ms");
+    }
+
+    /**
+     * Drops the connection.
+     * A new one is opened by the next call.
+     */
+    public synchronized void close(){
+        connection = null;
+    }
+
+    /**
+     * Sends a message opening the connection if needed.
+     * If sending fails the other plugin may have been reloaded,
+     * so the connection is opened again and the message is resent once.
+     *
+     * @param message FCPPluginMessage : The message
+     * @throws PluginNotFoundException
+     * @throws IOException
+     */
+    private void send(FCPPluginMessage message) throws PluginNotFoundException, IOException{
+        FCPPluginConnection current = getConnection();
+        try {
+            current.send(message);
+        }
+        catch (IOException e){
+            reset(current);
+            getConnection().send(message);
+        }
+    }
+
+    private synchronized FCPPluginConnection getConnection() throws PluginNotFoundException{
+        if (connection == null){
+            connection = connector.connect(pluginName, this);
+        }
+        return connection;
+    }
+
+    private synchronized void reset(FCPPluginConnection failed){
+        if (connection == failed){
+            connection = null;
+        }
+    }
+
+    /**
+     * Called by the node for every message the other plugin sends.
+     * Replies complete the futures of the calls waiting for them.
+     *
+     * @param fcppc FCPPluginConnection : The connection
+     * @param fcppm FCPPluginMessage : The received message
+     * @return FCPPluginMessage : null as no reply is sent
+     */
+    @Override
+    public FCPPluginMessage handlePluginFCPMessage(FCPPluginConnection fcppc, FCPPluginMessage fcppm) {
+        if (fcppm.isReplyMessage()){
+            CompletableFuture<FCPPluginMessage> reply = pending.get(fcppm.identifier);
+            if (reply != null){
+                reply.complete(fcppm);
+            }
+        }
+        return null;
+    }
+}
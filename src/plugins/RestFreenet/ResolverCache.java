@@ -0,0 +1,236 @@
+package plugins.RestFreenet;
+
+import freenet.clients.fcp.FCPPluginMessage;
+import freenet.support.Executor;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * A TTL cache for the replies of the Indynet resolver.
+ * Successful and failed resolutions are cached for different periods.
+ * An expired reply is still served for a stale period while it is refreshed in the background.
+ * Concurrent lookups of a name that is being resolved wait for the same lookup.
+ * A lookup or refresh that started before the name was invalidated does not put its reply in the cache.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class ResolverCache {
+    private final Resolver resolver;
+    private final Executor executor;
+    private final long ttl; //Time to live of successful resolutions in ms
+    private final long negativeTtl; //Time to live of failed resolutions in ms
+    private final long staleTtl; //Time an expired reply is served while being refreshed in ms
+    private final LinkedHashMap<String, CachedReply> entries;
+    private final Map<String, PendingLookup> pending;
+    private final LinkedHashMap<String, Long> invalidations; //Name => generation of its last invalidation
+    private long generation = 0; //Bumped by every invalidation
+    private long cleared = 0; //The generation of the last clear
+
+    /**
+     * Resolver does the actual lookup of a name
+     */
+    public interface Resolver {
+        /**
+         * Resolves a name
+         *
+         * @param name String : The name
+         * @return FCPPluginMessage : The reply of the resolver
+         * @throws Exception
+         */
+        FCPPluginMessage resolve(String name) throws Exception;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param resolver Resolver : Does the actual lookups
+     * @param executor Executor : Runs the background refreshes
+     * @param ttl long : Time to live of successful resolutions in ms
+     * @param negativeTtl long : Time to live of failed resolutions in ms
+     * @param staleTtl long : Time an expired reply is served while being refreshed in ms
+     * @param maxEntries int : The maximum number of cached names
+     */
+    public ResolverCache(Resolver resolver, Executor executor, long ttl, long negativeTtl, long staleTtl, final int maxEntries){
+        this.resolver = resolver;
+        this.executor = executor;
+        this.ttl = ttl;
+        this.negativeTtl = negativeTtl;
+        this.staleTtl = staleTtl;
+        this.entries = new LinkedHashMap<String, CachedReply>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedReply> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.pending = new HashMap<String, PendingLookup>();
+        this.invalidations = new LinkedHashMap<String, Long>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Long> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Returns the resolver reply for a name from the cache or looks it up
+     *
+     * @param name String : The name
+     * @return FCPPluginMessage : The reply of the resolver
+     * @throws Exception
+     */
+    public FCPPluginMessage resolve(final String name) throws Exception{
+        PendingLookup lookup;
+        boolean leader = false;
+        long started;
+        synchronized (this){
+            started = generation;
+            long now = System.currentTimeMillis();
+            CachedReply entry = entries.get(name);
+            if (entry != null && now < entry.expires){
+                return entry.message;
+            }
+            if (entry != null && now < entry.expires + staleTtl){
+                if (!entry.refreshing){
+                    entry.refreshing = true;
+                    refresh(name, entry, started);
+                }
+                return entry.message;
+            }
+            lookup = pending.get(name);
+            if (lookup == null){
+                lookup = new PendingLookup();
+                pending.put(name, lookup);
+                leader = true;
+            }
+        }
+        if (leader){
+            FCPPluginMessage message = null;
+            Exception error = null;
+            try {
+                message = resolver.resolve(name);
+            }
+            catch (Exception e){
+                error = e;
+            }
+            synchronized (this){
+                if (pending.get(name) == lookup){
+                    pending.remove(name);
+                }
+                if (message != null && isCurrent(name, started)){
+                    put(name, message);
+                }
+                lookup.complete(message, error);
+            }
+        }
+        return lookup.await();
+    }
+
+    /**
+     * Removes a name from the cache.
+     * Lookups and refreshes of the name in progress do not put their replies in the cache
+     * and later requests do not wait for them.
+     *
+     * @param name String : The name
+     */
+    public synchronized void invalidate(String name){
+        entries.remove(name);
+        pending.remove(name);
+        invalidations.put(name, ++generation);
+    }
+
+    /**
+     * Removes all names from the cache
+     */
+    public synchronized void clear(){
+        entries.clear();
+        pending.clear();
+        invalidations.clear();
+        cleared = ++generation;
+    }
+
+    /**
+     * Returns true if a name has not been invalidated since a generation.
+     * Called with the cache lock held.
+     *
+     * @param name String : The name
+     * @param started long : The generation when the lookup of the name started
+     * @return boolean
+     */
+    private boolean isCurrent(String name, long started){
+        Long invalidated = invalidations.get(name);
+        return cleared <= started && (invalidated == null || invalidated <= started);
+    }
+
+    /**
+     * Looks up a stale name in the background
+     *
+     * @param name String : The name
+     * @param stale CachedReply : The stale entry
+     * @param started long : The generation when the refresh started
+     */
+    private void refresh(final String name, final CachedReply stale, final long started){
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    FCPPluginMessage message = resolver.resolve(name);
+                    synchronized (ResolverCache.this){
+                        if (isCurrent(name, started)){
+                            put(name, message);
+                        }
+                    }
+                }
+                catch (Exception e){
+                    synchronized (ResolverCache.this){
+                        stale.refreshing = false;
+                    }
+                }
+            }
+        }, "RestFreenet resolver cache refresh");
+    }
+
+    private void put(String name, FCPPluginMessage message){
+        long expires = System.currentTimeMillis() + (message.success ? ttl : negativeTtl);
+        entries.put(name, new CachedReply(message, expires));
+    }
+
+    /**
+     * CachedReply holds a cached reply
+     */
+    private static class CachedReply {
+        final FCPPluginMessage message;
+        final long expires;
+        boolean refreshing;
+
+        CachedReply(FCPPluginMessage message, long expires){
+            this.message = message;
+            this.expires = expires;
+        }
+    }
+
+    /**
+     * PendingLookup is used by the requests waiting for a lookup
+     * that another request has started
+     */
+    private static class PendingLookup {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private FCPPluginMessage message;
+        private Exception error;
+
+        void complete(FCPPluginMessage message, Exception error){
+            this.message = message;
+            this.error = error;
+            done.countDown();
+        }
+
+        FCPPluginMessage await() throws Exception{
+            done.await();
+            if (error != null){
+                throw error;
+            }
+            return message;
+        }
+    }
+}
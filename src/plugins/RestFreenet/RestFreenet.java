@@ -43,6 +43,7 @@ import org.json.simple.parser.ParseException;
  */
 public class RestFreenet implements FredPlugin, FredPluginThreadless {
 	PluginRespirator pr; //The PluginRespirator object provided when runPlugin method is called.
+        RestToadlet rt; //The Toadlet that handles the HTTP requests
         final static String BASEPATH = "/rest/"; //The base path under which the pugin is accessed. 
         final static String INDYNET_PLUGIN_NAME = "plugins.Indynet.Indynet";
         final static String WSFREENET_PLUGIN_NAME = "plugins.WSFreenet.WSFreenet";
@@ -50,11 +51,14 @@ public class RestFreenet implements FredPlugin, FredPluginThreadless {
         
         /**
          * Implementation of terminate method. 
-         * We just do goon false so the main loop exists.
+         * Unregisters the Toadlet and releases its resources.
          */
         @Override
 	public void terminate() {
-            
+            if (rt != null){
+                pr.getToadletContainer().unregister(rt);
+                rt.shutdown();
+            }
 	}
 
         /**
@@ -68,7 +72,7 @@ public class RestFreenet implements FredPlugin, FredPluginThreadless {
                 this.pr = pr;
                 ToadletContainer tc = pr.getToadletContainer(); //Get the container
                 JSONObject config = readJsonConfig();
-                RestToadlet rt = new RestToadlet(BASEPATH, INDYNET_PLUGIN_NAME, WSFREENET_PLUGIN_NAME, config, pr); //Create the Toadlet that handles the HTTP requests
+                rt = new RestToadlet(BASEPATH, INDYNET_PLUGIN_NAME, WSFREENET_PLUGIN_NAME, config, pr); //Create the Toadlet that handles the HTTP requests
                 tc.register(rt, null, rt.path(), true, false); //Resgister the Toadlet to the container
             } catch (IOException ex) {
                 Logger.getLogger(RestFreenet.class.getName()).log(Level.SEVERE, null, ex);
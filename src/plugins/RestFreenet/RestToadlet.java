@@ -1,6 +1,7 @@
 package plugins.RestFreenet;
 
 import freenet.client.ClientMetadata;
+import freenet.client.FetchException;
 import freenet.client.HighLevelSimpleClient;
 import freenet.client.InsertBlock;
 import freenet.client.InsertContext;
@@ -9,45 +10,64 @@ import freenet.client.async.BaseClientPutter;
 import freenet.client.async.ClientContext;
 import freenet.client.async.ClientPutCallback;
 import freenet.client.async.ClientPutter;
-import freenet.clients.fcp.FCPPluginConnection;
+import freenet.client.async.DefaultManifestPutter;
+import freenet.client.async.TooManyFilesInsertException;
+import freenet.client.events.ClientEvent;
+import freenet.client.events.ClientEventListener;
+import freenet.client.events.SplitfileProgressEvent;
 import freenet.clients.fcp.FCPPluginMessage;
 import freenet.clients.http.LinkEnabledCallback;
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.Toadlet;
 import freenet.clients.http.ToadletContext;
 import freenet.clients.http.ToadletContextClosedException;
-import freenet.crypt.RandomSource;
 import freenet.keys.FreenetURI;
 import freenet.keys.InsertableClientSSK;
-import freenet.node.Node;
+import freenet.keys.USK;
 import freenet.node.RequestClient;
 import freenet.node.RequestStarter;
-import freenet.pluginmanager.FredPluginFCPMessageHandler.ClientSideFCPMessageHandler;
 import freenet.pluginmanager.PluginNotFoundException;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.MultiValueTable;
 import freenet.support.SimpleFieldSet;
 import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
 import freenet.support.api.HTTPRequest;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.net.MalformedURLException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import freenet.support.api.RandomAccessBucket;
-import freenet.support.io.ArrayBucket;
+import freenet.support.io.BucketTools;
+import freenet.support.io.FileBucket;
 import freenet.support.io.ResumeFailedException;
-import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
 import java.util.Enumeration;
-import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
-import org.json.simple.parser.JSONParser;
-import org.json.simple.parser.ParseException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * The Toadlet class
@@ -56,13 +76,38 @@ import org.json.simple.parser.ParseException;
  * @author Konstantinos Togias <info@ktogias.gr>
  */
 public class RestToadlet extends Toadlet implements LinkEnabledCallback{
+    public static final String INSERT_MODE_SYNC = "sync"; //Reply when the insert has finished
+    public static final String INSERT_MODE_ASYNC = "async"; //Reply with the job id immediately
+    public static final String INSERT_MODE_URI = "uri"; //Reply with the job id and the URI as soon as the URI is generated
+    public static final String INSERT_MODE_STREAM = "stream"; //Stream the progress events of the insert
+    public static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable"; //The data of a CHK or SSK never changes
+    private static final Date IMMUTABLE_LAST_MODIFIED = new Date(0); //The modification time sent for the data of a CHK or SSK
+    public static final String CACHE_NO_STORE = "no-store"; //Replies that are different every time
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
     protected String path; //The url path under witch the Toadlet is accessed
     protected PluginRespirator pr;
     protected String indynetPluginName;
     protected String wsfreentPluginName;
     protected HighLevelSimpleClient client;
-    protected Node node;
+    protected NodeServices services; //The services of the node
     protected JSONObject config;
+    protected Map<String, InsertStatusCallback> insertJobs; //Asynchronous insert jobs by job id
+    protected FetchCache fetchCache; //Cache for the data of immutable keys
+    protected PluginConnection indynetConnection;
+    protected PluginConnection wsfreenetConnection;
+    protected ResolverCache resolverCache; //Cache for the replies of resname lookups
+    protected SSKKeyPool keyPool; //Pre-generated SSK key pairs
+    protected RouteTable routes; //The routes handled by the Toadlet
+    protected Metrics metrics;
+    protected InsertAdmission insertAdmission; //Limits the concurrent inserts and the bytes they hold
+    protected InsertJournal insertJournal; //Journal of the persistent inserts, null if not configured
+    protected InsertDedupIndex insertDedup; //The requestURIs of finished CHK inserts by content hash, null if disabled
+    protected CompressionPolicy compressionPolicy; //Decides if the data of an insert is compressed
+    protected USKSubscriptions uskSubscriptions; //The latest editions of the USKs asked about
+    protected USKEditions uskEditions; //The last editions assigned to inserts of the next edition of a USK
+    protected UploadSessions uploads; //The resumable uploads in progress, null if they cannot be stored
+    protected InsertProfiles insertProfiles; //Named insert settings chosen per request
+    private volatile boolean closed = false; //Set by shutdown, stops the resuming of journaled inserts
 
     /**
      * Class Constructor
@@ -75,157 +120,2133 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
      *
      */
     public RestToadlet(String path, String indynetPluginName, String wsfreenetPluginName, JSONObject config, PluginRespirator pr) {
-        super(pr.getHLSimpleClient());
-        this.path = path;
+        this(path, indynetPluginName, wsfreenetPluginName, config, NodeServices.fromRespirator(pr));
         this.pr = pr;
+    }
+    
+    /**
+     * Class Constructor
+     * 
+     * @param path String : The url path under witch the Toadlet is accessed
+     * @param indynetPluginName String : The name of indynet plugin
+     * @param wsfreenetPluginName String : The name of wsfreenet plugin
+     * @param config JSONObject : The plugin configuration
+     * @param services NodeServices : The services of the node
+     */
+    public RestToadlet(String path, String indynetPluginName, String wsfreenetPluginName, JSONObject config, NodeServices services) {
+        super(services.client);
+        this.path = path;
         this.indynetPluginName = indynetPluginName;
         this.wsfreentPluginName = wsfreenetPluginName;
-        this.client = pr.getHLSimpleClient();
-        this.node = pr.getNode();
+        this.client = services.client;
+        this.services = services;
         this.config = config;
+        this.metrics = new Metrics();
+        this.insertJobs = new ConcurrentHashMap<String, InsertStatusCallback>();
+        this.fetchCache = new FetchCache(client, getConfigLong("fetchCacheMaxBytes", 268435456), 
+                getConfigLong("fetchCacheMaxEntrySize", 16777216), getConfigLong("fetchMaxSize", Long.MAX_VALUE));
+        this.indynetConnection = new PluginConnection(services.pluginConnector, services.ticker, indynetPluginName, metrics);
+        this.wsfreenetConnection = new PluginConnection(services.pluginConnector, services.ticker, wsfreenetPluginName, metrics);
+        this.resolverCache = new ResolverCache(new ResolverCache.Resolver() {
+            @Override
+            public FCPPluginMessage resolve(String name) throws Exception {
+                return resName(name);
+            }
+        }, services.executor, getConfigLong("resnameCacheTtl", 60000), getConfigLong("resnameNegativeCacheTtl", 10000), 
+                getConfigLong("resnameStaleTtl", 300000), (int)getConfigLong("resnameCacheMaxEntries", 10000));
+        this.keyPool = new SSKKeyPool(services.random, services.executor, (int)getConfigLong("keyPoolSize", 256), 
+                (int)getConfigLong("keyPoolWorkers", Math.max(1, Runtime.getRuntime().availableProcessors() / 2)));
+        this.insertAdmission = createInsertAdmission();
+        this.insertJournal = createInsertJournal();
+        this.insertDedup = createInsertDedupIndex();
+        this.compressionPolicy = createCompressionPolicy();
+        this.insertProfiles = createInsertProfiles();
+        this.uskSubscriptions = new USKSubscriptions(services.uskTracker, services.ticker, 
+                getConfigLong("uskSubscriptionIdleTimeout", 600000), (int)getConfigLong("uskMaxSubscriptions", 1000), 
+                (short)getConfigLong("uskPollingPriority", RequestStarter.UPDATE_PRIORITY_CLASS));
+        this.uskEditions = new USKEditions((int)getConfigLong("uskInsertLockStripes", 64), 
+                (int)getConfigLong("uskInsertMaxKeys", 10000), getConfigLong("uskInsertLockTimeout", 30000));
+        this.uploads = createUploadSessions();
+        this.routes = createRoutes();
+        resumeJournaledInserts();
+    }
+    
+    /**
+     * Creates the insert admission control from the configuration.
+     * The limits of a priority class default to the global limits.
+     * 
+     * @return InsertAdmission
+     */
+    private InsertAdmission createInsertAdmission(){
+        long maxInserts = getConfigLong("insertMaxConcurrent", 64);
+        long maxBytes = getConfigLong("insertMaxBytes", 1073741824);
+        int[] maxClassInserts = new int[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+        long[] maxClassBytes = new long[RequestStarter.NUMBER_OF_PRIORITY_CLASSES];
+        for (int i=0; i<RequestStarter.NUMBER_OF_PRIORITY_CLASSES; i++){
+            maxClassInserts[i] = (int)getConfigLong("insertMaxConcurrent."+i, maxInserts);
+            maxClassBytes[i] = getConfigLong("insertMaxBytes."+i, maxBytes);
+        }
+        return new InsertAdmission((int)maxInserts, maxBytes, maxClassInserts, maxClassBytes, 
+                getConfigLong("insertQueueTimeout", 2000));
+    }
+    
+    /**
+     * Creates the journal of the persistent inserts in the insertJournalDir directory
+     * 
+     * @return InsertJournal : The journal or null if insertJournalDir is not set or cannot be used
+     */
+    private InsertJournal createInsertJournal(){
+        String dir = getConfigString("insertJournalDir", null);
+        if (dir == null){
+            return null;
+        }
+        try {
+            return new InsertJournal(new File(dir));
+        }
+        catch (IOException ex){
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Creates the index of finished CHK inserts, kept in the insertDedupFile file if it is set
+     * 
+     * @return InsertDedupIndex : The index or null if insertDedupMaxEntries is 0 or the file cannot be used
+     */
+    private InsertDedupIndex createInsertDedupIndex(){
+        long maxEntries = getConfigLong("insertDedupMaxEntries", 100000);
+        if (maxEntries <= 0){
+            return null;
+        }
+        String file = getConfigString("insertDedupFile", null);
+        try {
+            return new InsertDedupIndex(file == null ? null : new File(file), (int)maxEntries);
+        }
+        catch (IOException ex){
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Creates the resumable upload sessions, stored in the uploadDir directory
+     * 
+     * @return UploadSessions : The sessions or null if the directory cannot be used
+     */
+    private UploadSessions createUploadSessions(){
+        String dir = getConfigString("uploadDir", new File(System.getProperty("java.io.tmpdir"), "restfreenet-uploads").getPath());
+        try {
+            return new UploadSessions(new File(dir), services.ticker, getConfigLong("uploadIdleTimeout", 3600000), 
+                    getConfigLong("uploadMaxBytes", getConfigLong("insertMaxBytes", 1073741824)), (int)getConfigLong("uploadMaxSessions", 100));
+        }
+        catch (IOException ex){
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.SEVERE, null, ex);
+            return null;
+        }
+    }
+    
+    /**
+     * Creates the insert profiles from the insertProfiles object of the configuration.
+     * If a profile is not valid only the default profile is used.
+     * 
+     * @return InsertProfiles
+     */
+    private InsertProfiles createInsertProfiles(){
+        Object profiles = config.get("insertProfiles");
+        InsertContext nodeContext = client.getInsertContext(true);
+        try {
+            return new InsertProfiles(nodeContext, profiles instanceof Map ? (Map<?, ?>)profiles : null);
+        }
+        catch (IllegalArgumentException ex){
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.SEVERE, null, ex);
+            return new InsertProfiles(nodeContext, null);
+        }
+    }
+    
+    /**
+     * Returns the dedup index key of a CHK insert
+     * The content type and the file name are part of the inserted metadata and of the URI, 
+     * and the compression and the splitfile settings of the profile change the inserted blocks, so they are part of the key.
+     * 
+     * @param data Bucket : The inserted data
+     * @param contenttype String : The content type of the data
+     * @param filename String : The file name
+     * @param compress boolean : If the data is compressed
+     * @param profile InsertProfiles.Profile : The insert profile
+     * @return String
+     * @throws IOException 
+     */
+    private String dedupKey(Bucket data, String contenttype, String filename, boolean compress, InsertProfiles.Profile profile) throws IOException{
+        String compression = compress ? String.valueOf(compressionPolicy.getCompressors()) : "none";
+        String settings = contenttype+"|"+filename+"|"+compression;
+        if (!profile.getName().equals(InsertProfiles.DEFAULT)){
+            settings += "|"+profile.getName();
+        }
+        return InsertDedupIndex.key(data, settings);
+    }
+    
+    /**
+     * Creates the compression policy of inserts from the configuration
+     * 
+     * @return CompressionPolicy
+     */
+    private CompressionPolicy createCompressionPolicy(){
+        List<String> skipTypes = CompressionPolicy.defaultSkipTypes();
+        Object types = config.get("compressSkipTypes");
+        if (types instanceof List){
+            skipTypes = new ArrayList<String>();
+            for (Object type : (List<?>)types){
+                skipTypes.add(String.valueOf(type));
+            }
+        }
+        return new CompressionPolicy(skipTypes, getConfigDouble("compressEntropyThreshold", 7.5), 
+                (int)getConfigLong("compressSampleSize", 4096), getConfigString("insertCompressors", null));
+    }
+    
+    /**
+     * Sets the compression of an insert
+     * 
+     * @param insertContext InsertContext : The context of the insert
+     * @param compress boolean : If the data is compressed
+     */
+    private void setCompression(InsertContext insertContext, boolean compress){
+        insertContext.dontCompress = !compress;
+        if (compress && compressionPolicy.getCompressors() != null){
+            insertContext.compressorDescriptor = compressionPolicy.getCompressors();
+        }
+    }
+    
+    /**
+     * Records the compression decision of an insert in the metrics
+     * 
+     * @param decision CompressionPolicy.Decision : The decision
+     */
+    private void countCompression(CompressionPolicy.Decision decision){
+        metrics.increment("restfreenet_insert_compression_total", Metrics.label("decision", decision.compress ? "compressed" : "skipped")
+                +","+Metrics.label("reason", decision.reason), 1);
+    }
+    
+    /**
+     * Resumes the persistent inserts found in the journal,
+     * i.e. the inserts that were running when the node or the plugin stopped
+     */
+    private void resumeJournaledInserts(){
+        if (insertJournal == null){
+            return;
+        }
+        for (final JSONObject entry : insertJournal.load()){
+            services.executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    resumeInsert(entry);
+                }
+            }, "RestFreenet insert resume");
+        }
+    }
+    
+    /**
+     * Resumes a persistent insert from its journal entry under its original job id.
+     * The insert is admitted like a new one and is retried after insertRetryAfter seconds 
+     * if there is no room. An entry past its deadline, over the insert limits or that cannot be inserted is removed.
+     * After shutdown the entry is left in the journal for the next start.
+     * 
+     * @param entry JSONObject : The journal entry
+     */
+    private void resumeInsert(final JSONObject entry){
+        if (closed){
+            return;
+        }
+        String jobId = (String)entry.get("jobId");
+        long deadline = ((Number)entry.get("deadline")).longValue();
+        long timeout = 0;
+        if (deadline > 0){
+            timeout = deadline - System.currentTimeMillis();
+            if (timeout <= 0){
+                insertJournal.remove(jobId);
+                return;
+            }
+        }
+        short priority = ((Number)entry.get("priority")).shortValue();
+        String contenttype = (String)entry.get("contentType");
+        RandomAccessBucket data = insertJournal.open(jobId);
+        SiteArchive archive = null;
+        long size = data.size();
+        if ("insertsite".equals(entry.get("action"))){
+            /*The extracted files are admitted as for a new site insert*/
+            try {
+                archive = readSiteArchive(data, contenttype);
+            }
+            catch (IOException ex){
+                insertJournal.remove(jobId);
+                Logger.getLogger(RestToadlet.class.getName()).log(Level.WARNING, "Cannot resume insert "+jobId, ex);
+                return;
+            }
+            size = archive.getSize();
+        }
+        if (!insertAdmission.fits(priority, size)){
+            /*The limits have been lowered since, it would never be admitted*/
+            if (archive != null){
+                archive.free();
+            }
+            insertJournal.remove(jobId);
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.WARNING, "Cannot resume insert "+jobId+", its "+size+" bytes are over the insert limits");
+            return;
+        }
+        InsertAdmission.Permit permit;
+        try {
+            permit = insertAdmission.acquire(priority, size);
+        }
+        catch (InterruptedException e){
+            if (archive != null){
+                archive.free();
+            }
+            return;
+        }
+        if (permit != null && closed){
+            /*Shut down while waiting for room*/
+            permit.release();
+        }
+        if (permit == null || closed){
+            if (archive != null){
+                archive.free();
+            }
+            if (!closed){
+                services.ticker.queueTimedJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        resumeInsert(entry);
+                    }
+                }, getConfigLong("insertRetryAfter", 5) * 1000);
+            }
+            return;
+        }
+        String key = (String)entry.get("key");
+        String filename = (String)entry.get("filename");
+        boolean realtime = Boolean.TRUE.equals(entry.get("realtime"));
+        boolean compress = !Boolean.FALSE.equals(entry.get("compress"));
+        InsertProfiles.Profile profile = insertProfiles.get((String)entry.get("profile"));
+        if (profile == null){
+            /*The profile has been removed from the configuration since*/
+            profile = insertProfiles.get(InsertProfiles.DEFAULT);
+        }
+        try {
+            InsertStatusCallback callback;
+            if (archive != null){
+                callback = insertSite(key, filename, (String)entry.get("defaultName"), archive, priority, realtime, compress, profile, permit, jobId, true, null);
+            }
+            else {
+                callback = insert(key, filename, contenttype, data, true, priority, realtime, compress, profile, false, null, permit, jobId, true, null);
+            }
+            callback.setDeadline(timeout);
+            if (closed){
+                /*Shut down while the insert was starting, shutdown may not have seen its job*/
+                callback.suspend();
+                return;
+            }
+            metrics.increment("restfreenet_insert_resumed_total", "", 1);
+        }
+        catch (Exception ex){
+            if (archive != null){
+                archive.free();
+            }
+            permit.release();
+            insertJournal.remove(jobId);
+            Logger.getLogger(RestToadlet.class.getName()).log(Level.WARNING, "Cannot resume insert "+jobId, ex);
+        }
+    }
+    
+    /**
+     * Writes the journal entry of a persistent insert
+     * 
+     * @param jobId String : The id of the insert job
+     * @param data Bucket : The inserted content, the archive for a site
+     * @param action String : insert or insertsite
+     * @param key String : The InsertURI
+     * @param filename String : The file or site name
+     * @param contenttype String : The content-type of the data
+     * @param defaultName String : The default file of a site, null for an insert
+     * @param priority short : The priority of the insert
+     * @param realtime boolean : If the insert is realtime or not
+     * @param compress boolean : If the data is compressed
+     * @param profile InsertProfiles.Profile : The insert profile
+     * @param timeout long : The deadline of the insert in milliseconds, 0 for none
+     * @return RandomAccessBucket : The journaled content, used for the insert
+     * @throws IOException 
+     */
+    private RandomAccessBucket journalInsert(String jobId, Bucket data, String action, String key, String filename, String contenttype, 
+            String defaultName, short priority, boolean realtime, boolean compress, InsertProfiles.Profile profile, long timeout) throws IOException{
+        JSONObject entry = new JSONObject();
+        entry.put("action", action);
+        entry.put("key", key);
+        entry.put("filename", filename);
+        entry.put("contentType", contenttype);
+        if (defaultName != null){
+            entry.put("defaultName", defaultName);
+        }
+        entry.put("priority", priority);
+        entry.put("realtime", realtime);
+        entry.put("compress", compress);
+        entry.put("profile", profile.getName());
+        entry.put("deadline", timeout > 0 ? System.currentTimeMillis() + timeout : 0);
+        return insertJournal.write(jobId, data, entry);
+    }
+    
+    /**
+     * Releases the resources held by the Toadlet.
+     * Called when the plugin is terminated.
+     * Running persistent inserts are stopped and kept in the journal, 
+     * so they are resumed when the plugin starts again.
+     */
+    public void shutdown(){
+        closed = true;
+        for (InsertStatusCallback callback : insertJobs.values()){
+            if (callback.isJournaled()){
+                callback.suspend();
+            }
+        }
+        if (insertDedup != null){
+            insertDedup.close();
+        }
+        uskSubscriptions.close();
+        if (uploads != null){
+            uploads.close();
+        }
+        fetchCache.clear();
+        resolverCache.clear();
+        keyPool.stop();
+        indynetConnection.close();
+        wsfreenetConnection.close();
+    }
+    
+    /**
+     * Resturns the path
+     * 
+     * @return String 
+     */
+    @Override
+    public String path() {
+            return path;
+    }
+
+    /**
+     * Implementation of handleMethodGET
+     * This method handles HTTP GET requests
+     * 
+     * @param uri URI : The URI of the request
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws ToadletContextClosedException
+     * @throws IOException
+     * @throws RedirectException 
+     */
+    @Override
+    public void handleMethodGET(URI uri, HTTPRequest httpr, ToadletContext tc) throws ToadletContextClosedException, IOException, RedirectException {
+        dispatch("GET", uri, httpr, tc);
+    }
+    
+    /**
+     * handleMethodPOST method handles HTTP POST requests
+     * 
+     * @param uri URI : The URI of the request
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws ToadletContextClosedException
+     * @throws IOException
+     * @throws RedirectException 
+     */
+    public void handleMethodPOST(URI uri, HTTPRequest httpr, ToadletContext tc) throws ToadletContextClosedException, IOException, RedirectException{
+        dispatch("POST", uri, httpr, tc);
+    }
+    
+    /**
+     * Matches a request to the route table and calls the handler of the route
+     * 
+     * @param method String : The HTTP method
+     * @param uri URI : The URI of the request
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    private void dispatch(String method, URI uri, HTTPRequest httpr, ToadletContext tc) throws ToadletContextClosedException, IOException{
+        long start = System.nanoTime();
+        RouteTable.Match match = routes.match(method, uri.getPath());
+        String action = match.getStatus() == RouteTable.FOUND ? match.getAction() : "unknown";
+        String actionLabel = Metrics.label("action", action);
+        metrics.gaugeAdd("restfreenet_requests_in_flight", actionLabel, 1);
+        try {
+            if (match.getStatus() == RouteTable.NOT_FOUND){
+                writeReply(tc, 404, "text/plain", "Not Found", "Requested action is not supported");
+                return;
+            }
+            if (match.getStatus() == RouteTable.METHOD_NOT_ALLOWED){
+                MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+                headers.put("Allow", match.getAllow());
+                addOriginHeader(headers);
+                metrics.setReplyStatus(405);
+                super.writeReply(tc, 405, "text/plain", "Method Not Allowed", headers, "Requested method is not supported for this action");
+                return;
+            }
+            try {
+                match.getHandler().handle(match, httpr, tc);
+            } catch (Exception e){
+                writeReply(tc, 500, "text/plain", "error", "Server error: "+e.toString());
+            }
+        }
+        finally {
+            metrics.gaugeAdd("restfreenet_requests_in_flight", actionLabel, -1);
+            metrics.observe("restfreenet_request_duration_seconds", actionLabel+","
+                    +Metrics.label("status", String.valueOf(metrics.takeReplyStatus())), System.nanoTime() - start);
+        }
+    }
+    
+    /**
+     * Compiles the routes handled by the Toadlet.
+     * Package visible for the benchmarks, which match requests against the same table.
+     * 
+     * @return RouteTable
+     */
+    RouteTable createRoutes(){
+        RouteTable table = new RouteTable(path);
+        table.add("GET", "keygen/{keytype}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleKeygen(match, httpr, tc);
+            }
+        });
+        table.add("GET", "resname/{name}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleResname(match, httpr, tc);
+            }
+        });
+        table.add("GET", "wsfreenetstatus", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleGetWSFreenetStatus(match, httpr, tc);
+            }
+        });
+        table.add("GET", "fetch/{requestURI*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleFetch(match, httpr, tc);
+            }
+        });
+        table.add("GET", "usk/{requestURI*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUSKEdition(match, httpr, tc);
+            }
+        });
+        table.add("GET", "fetchcache", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleFetchCacheStats(match, httpr, tc);
+            }
+        });
+        table.add("GET", "insertstatus/{jobId}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleInsertStatus(match, httpr, tc);
+            }
+        });
+        table.add("GET", "metrics", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleMetrics(match, httpr, tc);
+            }
+        });
+        table.add("GET", "status", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                writeReply(tc, 200, "text/plain", "OK", "OK", CACHE_NO_STORE);
+            }
+        });
+        table.add("POST", "insert/{key}/{filename*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleInsert(match, httpr, tc);
+            }
+        });
+        table.add("POST", "chk/{filename*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleComputeCHK(match, httpr, tc);
+            }
+        });
+        table.add("POST", "regname", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleRegName(match, httpr, tc);
+            }
+        });
+        table.add("POST", "insertsite/{key}/{filename*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleInsertSite(match, httpr, tc);
+            }
+        });
+        table.add("POST", "insertcancel/{jobId}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleInsertCancel(match, httpr, tc);
+            }
+        });
+        table.add("POST", "uploadstart", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUploadStart(match, httpr, tc);
+            }
+        });
+        table.add("POST", "upload/{uploadId}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUploadChunk(match, httpr, tc);
+            }
+        });
+        table.add("GET", "upload/{uploadId}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUploadStatus(match, httpr, tc);
+            }
+        });
+        table.add("POST", "uploadcancel/{uploadId}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUploadCancel(match, httpr, tc);
+            }
+        });
+        table.add("POST", "uploadinsert/{uploadId}/{key}/{filename*}", new RouteTable.Handler() {
+            @Override
+            public void handle(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception {
+                handleUploadInsert(match, httpr, tc);
+            }
+        });
+        return table;
+    }
+    
+    @Override
+    protected void writeReply(ToadletContext tc, int code, String mimeType, String desc, String reply) throws ToadletContextClosedException, IOException{
+        writeReply(tc, code, mimeType, desc, reply, null);
+    }
+    
+    /**
+     * Sends a text reply with a Cache-Control header
+     * 
+     * @param tc ToadletContext : The Context object
+     * @param code int : The status code
+     * @param mimeType String : The mime type of the reply
+     * @param desc String : The status description
+     * @param reply String : The reply
+     * @param cacheControl String : The Cache-Control header or null for none
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    protected void writeReply(ToadletContext tc, int code, String mimeType, String desc, String reply, String cacheControl) throws ToadletContextClosedException, IOException{
+        MultiValueTable<String, String> headers = tc.getHeaders();
+        headers.remove("content-length");
+        if (cacheControl != null){
+            headers.put("Cache-Control", cacheControl);
+        }
+        addOriginHeader(headers);
+        metrics.setReplyStatus(code);
+        super.writeReply(tc, code, mimeType, desc, headers, reply);
+    }
+    
+    /**
+     * Sends a json reply.
+     * The value is encoded straight to UTF-8 bytes in the reusable buffer of the thread,
+     * or to CBOR if the client prefers application/cbor in its Accept header.
+     * 
+     * @param tc ToadletContext : The Context object
+     * @param code int : The status code
+     * @param desc String : The status description
+     * @param value Object : The value, a JSONObject, JSONArray, Map, List or a plain value
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    protected void writeJsonReply(ToadletContext tc, int code, String desc, Object value) throws ToadletContextClosedException, IOException{
+        writeJsonReply(tc, code, desc, value, null);
+    }
+    
+    /**
+     * Sends a json reply with a Cache-Control header
+     * 
+     * @param tc ToadletContext : The Context object
+     * @param code int : The status code
+     * @param desc String : The status description
+     * @param value Object : The value, a JSONObject, JSONArray, Map, List or a plain value
+     * @param cacheControl String : The Cache-Control header or null for none
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    protected void writeJsonReply(ToadletContext tc, int code, String desc, Object value, String cacheControl) throws ToadletContextClosedException, IOException{
+        JsonWriter writer = JsonWriter.forThread(acceptsCbor(tc));
+        writer.value(value);
+        sendJsonReply(tc, code, desc, writer, cacheControl);
+    }
+    
+    /**
+     * Sends a reply of json text received from elsewhere.
+     * The text is sent as it is, or re-encoded as CBOR if the client prefers it.
+     * 
+     * @param tc ToadletContext : The Context object
+     * @param code int : The status code
+     * @param desc String : The status description
+     * @param json String : The json text
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    protected void writeJsonTextReply(ToadletContext tc, int code, String desc, String json) throws ToadletContextClosedException, IOException{
+        byte[] bytes = json.getBytes("UTF-8");
+        if (acceptsCbor(tc)){
+            JsonWriter writer = JsonWriter.forThread(true);
+            writer.value(new JsonReader(new ByteArrayInputStream(bytes)));
+            sendJsonReply(tc, code, desc, writer, null);
+            return;
+        }
+        sendJsonReply(tc, code, desc, "application/json", bytes, bytes.length, null);
+    }
+    
+    private void sendJsonReply(ToadletContext tc, int code, String desc, JsonWriter writer, String cacheControl) throws ToadletContextClosedException, IOException{
+        sendJsonReply(tc, code, desc, writer.isCbor() ? "application/cbor" : "application/json", writer.getBuffer(), writer.getSize(), cacheControl);
+    }
+    
+    private void sendJsonReply(ToadletContext tc, int code, String desc, String mimeType, byte[] data, int length, String cacheControl) throws ToadletContextClosedException, IOException{
+        MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+        headers.put("Vary", "Accept");
+        if (cacheControl != null){
+            headers.put("Cache-Control", cacheControl);
+        }
+        addOriginHeader(headers);
+        metrics.setReplyStatus(code);
+        tc.sendReplyHeaders(code, desc, headers, mimeType, length);
+        tc.writeData(data, 0, length);
+    }
+    
+    /**
+     * Returns true if the Accept header of the request lists application/cbor
+     * with a quality not lower than that of application/json.
+     * Clients that do not ask for CBOR explicitly get json.
+     * 
+     * @param tc ToadletContext : The Context object
+     * @return boolean
+     */
+    private static boolean acceptsCbor(ToadletContext tc){
+        String accept = tc.getHeaders().get("accept");
+        if (accept == null){
+            return false;
+        }
+        double cbor = 0;
+        double json = -1;
+        double wildcard = 0;
+        for (String range : accept.split(",")){
+            String[] parts = range.split(";");
+            String type = parts[0].trim().toLowerCase();
+            double quality = 1;
+            for (int i=1; i<parts.length; i++){
+                String param = parts[i].trim();
+                if (param.startsWith("q=")){
+                    try {
+                        quality = Double.parseDouble(param.substring(2).trim());
+                    }
+                    catch (NumberFormatException e){
+                        quality = 0;
+                    }
+                }
+            }
+            if (type.equals("application/cbor")){
+                cbor = Math.max(cbor, quality);
+            }
+            else if (type.equals("application/json")){
+                json = Math.max(json, quality);
+            }
+            else if (type.equals("application/*") || type.equals("*/*")){
+                wildcard = Math.max(wildcard, quality);
+            }
+        }
+        return cbor > 0 && cbor >= (json < 0 ? wildcard : json);
+    }
+    
+    /**
+     * Adds the configured Access-Control-Allow-Origin header if any
+     * 
+     * @param headers MultiValueTable<String, String> : The reply headers
+     */
+    private void addOriginHeader(MultiValueTable<String, String> headers){
+        String origin = (String)config.getOrDefault("Access-Control-Allow-Origin", null);
+        if (origin != null){
+            headers.put("Access-Control-Allow-Origin", origin);
+        }
+    }
+    
+    /**
+     * Sends the contents of a Bucket as reply.
+     * The data is streamed from the Bucket in chunks. 
+     * If the request has a single byte Range header only the requested range is sent.
+     * 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @param mimeType String : The mime type of the data
+     * @param data Bucket : The data to send
+     * @param etag String : The ETag of immutable data, sent with a Cache-Control header that lets it be cached forever, or null
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    private void writeBucketReply(HTTPRequest httpr, ToadletContext tc, String mimeType, Bucket data, String etag) throws ToadletContextClosedException, IOException{
+        long size = data.size();
+        MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+        headers.put("Accept-Ranges", "bytes");
+        addCachingHeaders(headers, etag);
+        addOriginHeader(headers);
+        long[] range = getRangeFromRequest(httpr, size);
+        if (range != null && range.length == 0){
+            headers.put("Content-Range", "bytes */"+size);
+            metrics.setReplyStatus(416);
+            sendCachingReplyHeaders(tc, 416, "Requested Range Not Satisfiable", headers, "text/plain", 0, etag);
+            return;
+        }
+        long start = 0;
+        long length = size;
+        if (range != null){
+            start = range[0];
+            length = range[1] - range[0] + 1;
+            headers.put("Content-Range", "bytes "+range[0]+"-"+range[1]+"/"+size);
+            metrics.setReplyStatus(206);
+            sendCachingReplyHeaders(tc, 206, "Partial Content", headers, mimeType, length, etag);
+        }
+        else {
+            metrics.setReplyStatus(200);
+            sendCachingReplyHeaders(tc, 200, "OK", headers, mimeType, length, etag);
+        }
+        InputStream input = data.getInputStream();
+        try {
+            long skipped = 0;
+            while (skipped < start){
+                long n = input.skip(start - skipped);
+                if (n <= 0){
+                    throw new IOException("Unexpected end of data");
+                }
+                skipped += n;
+            }
+            byte[] buffer = new byte[32768];
+            while (length > 0){
+                int bytesRead = input.read(buffer, 0, (int)Math.min(buffer.length, length));
+                if (bytesRead == -1){
+                    throw new IOException("Unexpected end of data");
+                }
+                tc.writeData(buffer, 0, bytesRead);
+                length -= bytesRead;
+            }
+        }
+        finally {
+            input.close();
+        }
+    }
+    
+    /**
+     * Adds the ETag and the Cache-Control header of immutable data
+     * 
+     * @param headers MultiValueTable<String, String> : The reply headers
+     * @param etag String : The ETag or null if the data is not immutable
+     */
+    private static void addCachingHeaders(MultiValueTable<String, String> headers, String etag){
+        if (etag != null){
+            headers.put("ETag", etag);
+            headers.put("Cache-Control", CACHE_IMMUTABLE);
+        }
+    }
+    
+    /**
+     * Sends the reply headers of data that may be immutable.
+     * Without a modification time the node adds headers that forbid caching and an Expires date in the past,
+     * so the data of an immutable key is sent with the fixed IMMUTABLE_LAST_MODIFIED.
+     * 
+     * @param tc ToadletContext : The Context object
+     * @param code int : The status code
+     * @param desc String : The status description
+     * @param headers MultiValueTable<String, String> : The reply headers
+     * @param mimeType String : The mime type of the reply
+     * @param length long : The length of the reply
+     * @param etag String : The ETag of immutable data or null
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    private static void sendCachingReplyHeaders(ToadletContext tc, int code, String desc, MultiValueTable<String, String> headers, String mimeType, long length, String etag) throws ToadletContextClosedException, IOException{
+        if (etag != null){
+            tc.sendReplyHeaders(code, desc, headers, mimeType, length, IMMUTABLE_LAST_MODIFIED);
+        }
+        else {
+            tc.sendReplyHeaders(code, desc, headers, mimeType, length);
+        }
+    }
+    
+    /**
+     * Returns the strong ETag of the data of a key that never changes, i.e. a CHK or an SSK.
+     * The data of such a key is always the same, so the ETag is derived from the key alone 
+     * and a conditional request is answered without fetching the data.
+     * 
+     * @param uri FreenetURI : The requested key
+     * @return String : The quoted ETag or null if the data of the key can change
+     */
+    private static String getImmutableETag(FreenetURI uri){
+        if (!uri.isCHK() && !uri.isSSK()){
+            return null;
+        }
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        }
+        catch (NoSuchAlgorithmException e){
+            return null;
+        }
+        byte[] hash = digest.digest(uri.toString().getBytes(StandardCharsets.UTF_8));
+        char[] etag = new char[34];
+        etag[0] = '"';
+        for (int i=0; i<16; i++){
+            etag[1 + i*2] = HEX[(hash[i] >> 4) & 0xf];
+            etag[2 + i*2] = HEX[hash[i] & 0xf];
+        }
+        etag[33] = '"';
+        return new String(etag);
+    }
+    
+    /**
+     * Returns true if the client already has the data of an immutable key, according to the
+     * If-None-Match header, or to the If-Modified-Since header if If-None-Match is not sent.
+     * The data never changes, so any valid If-Modified-Since date means the client's copy is current.
+     * 
+     * @param httpr HTTPRequest : The request object
+     * @param etag String : The ETag of the data
+     * @return boolean
+     */
+    private static boolean isNotModified(HTTPRequest httpr, String etag){
+        String ifNoneMatch = httpr.getHeader("if-none-match");
+        if (ifNoneMatch != null){
+            for (String tag : ifNoneMatch.split(",")){
+                tag = tag.trim();
+                if (tag.startsWith("W/")){
+                    /*If-None-Match uses the weak comparison*/
+                    tag = tag.substring(2);
+                }
+                if (tag.equals("*") || tag.equals(etag)){
+                    return true;
+                }
+            }
+            return false;
+        }
+        String ifModifiedSince = httpr.getHeader("if-modified-since");
+        if (ifModifiedSince == null){
+            return false;
+        }
+        try {
+            DateTimeFormatter.RFC_1123_DATE_TIME.parse(ifModifiedSince.trim());
+            return true;
+        }
+        catch (DateTimeParseException e){
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the byte range requested by the Range header of a request. 
+     * Only a single range of the bytes unit is supported, 
+     * other Range headers are ignored and the whole content is sent.
+     * 
+     * @param httpr HTTPRequest : The request object
+     * @param size long : The size of the content
+     * @return long[] : {first byte, last byte}, an empty array if the range cannot be satisfied 
+     * or null if the whole content should be sent
+     */
+    private long[] getRangeFromRequest(HTTPRequest httpr, long size){
+        String rangeHeader = httpr.getHeader("range");
+        if (rangeHeader == null || !rangeHeader.trim().toLowerCase().startsWith("bytes=")){
+            return null;
+        }
+        String spec = rangeHeader.trim().substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0 || spec.indexOf(',') >= 0){
+            return null;
+        }
+        try {
+            String first = spec.substring(0, dash).trim();
+            String last = spec.substring(dash+1).trim();
+            long start;
+            long end;
+            if (first.isEmpty()){
+                /*Suffix range: the last n bytes*/
+                long suffix = Long.parseLong(last);
+                if (suffix <= 0 || size == 0){
+                    return new long[0];
+                }
+                start = Math.max(0, size - suffix);
+                end = size - 1;
+            }
+            else {
+                start = Long.parseLong(first);
+                end = last.isEmpty() ? size - 1 : Math.min(Long.parseLong(last), size - 1);
+                if (start < 0 || end < start){
+                    return start >= size ? new long[0] : null;
+                }
+            }
+            if (start >= size){
+                return new long[0];
+            }
+            return new long[]{start, end};
+        }
+        catch (NumberFormatException e){
+            return null;
+        }
+    }
+    
+    /**
+     * handleInsert method gets the relevant parameters, 
+     * calls the method that does the insert 
+     * and sends the reply for requests to insert data.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleInsert(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        insertData(match.get("key")+"/", match.get("filename"), httpr.getHeader("Content-Type"), httpr.getRawData(), false, httpr, tc);
+    }
+    
+    /**
+     * Inserts data with the insert parameters of a request and sends the reply
+     * 
+     * @param key String : The insert key, ending with /
+     * @param filename String : The file name
+     * @param contenttype String : The content type of the data
+     * @param data Bucket : The data
+     * @param owned boolean : If the data belongs to the plugin and is handed to the insert, otherwise it is copied
+     * @param httpr HTTPRequest : The request object with the insert parameters
+     * @param tc ToadletContext : The Context object
+     * @return InsertOutcome : If the insert was refused, answered from the dedup index or started
+     * @throws Exception 
+     */
+    private InsertOutcome insertData(String key, String filename, String contenttype, Bucket data, boolean owned, HTTPRequest httpr, ToadletContext tc) throws Exception{
+            data.setReadOnly();
+            InsertProfiles.Profile profile = insertProfiles.get(httpr.getParam("profile"));
+            if (profile == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid profile "+httpr.getParam("profile"));
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            String priorityParam = httpr.getParam("priority");
+            short priority = profile.getPriority(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+            boolean realtime = httpr.isParameterSet("realtime") ? isTrueParam(httpr.getParam("realtime")) : profile.isRealtime();
+            String mode = getInsertMode(httpr);
+            long timeout = getInsertTimeout(httpr);
+            boolean persistent = isTrueParam(httpr.getParam("persistent"));
+            if (mode == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid mode "+httpr.getParam("mode"));
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            if (timeout < 0){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid timeout "+httpr.getParam("timeout"));
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            if (persistent && insertJournal == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Persistent inserts are not enabled");
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            if (!priorityParam.isEmpty()){
+                priority = Short.parseShort(priorityParam);
+            }
+            if (!insertAdmission.isValidPriority(priority)){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid priority "+priority);
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            CompressionPolicy.Decision compression = compressionPolicy.decide(httpr.getParam("compress"), contenttype, data);
+            if (compression == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid compress "+httpr.getParam("compress"));
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            String uskDocName = null;
+            String editionParam = httpr.getParam("edition");
+            if (!editionParam.isEmpty()){
+                uskDocName = getUSKDocName(key, filename);
+                if (!editionParam.equals("next") || uskDocName == null){
+                    writeReply(tc, 400, "text/plain", "Bad Request", "Invalid edition "+editionParam+", only next is supported for USK inserts");
+                    return InsertOutcome.REFUSED_OUTCOME;
+                }
+            }
+            InsertAdmission.Permit permit = admitInsert(priority, data.size(), tc);
+            if (permit == null){
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            String dedupKey = null;
+            if (insertDedup != null && key.toUpperCase().startsWith("CHK@") && isTrueParam(httpr.getParam("dedup", "1"))){
+                /*Hashing reads all the data, so it is done only with a permit*/
+                String requestURI;
+                try {
+                    dedupKey = dedupKey(data, contenttype, filename, compression.compress, profile);
+                    requestURI = insertDedup.get(dedupKey);
+                }
+                catch (IOException e){
+                    permit.release();
+                    throw e;
+                }
+                if (requestURI != null){
+                    permit.release();
+                    metrics.increment("restfreenet_insert_deduplicated_total", "", 1);
+                    replyDeduplicated(requestURI, mode, tc);
+                    return InsertOutcome.DEDUPLICATED_OUTCOME;
+                }
+            }
+            long edition = assignUSKEdition(key, uskDocName, permit, tc);
+            if (edition == -2){
+                return InsertOutcome.REFUSED_OUTCOME;
+            }
+            if (edition >= 0){
+                filename = uskDocName+"/"+edition;
+            }
+            InsertStatusCallback callback;
+            String jobId = newJobId(mode, persistent);
+            try {
+                if (persistent){
+                    data = journalInsert(jobId, data, "insert", key, filename, contenttype, null, priority, realtime, compression.compress, profile, timeout);
+                    owned = true;
+                }
+                countCompression(compression);
+                callback = insert(key, filename, contenttype, data, owned, priority, realtime, compression.compress, profile, false, dedupKey, permit, jobId, persistent, tc);
+            }
+            catch (Exception e){
+                permit.release();
+                if (persistent){
+                    insertJournal.remove(jobId);
+                }
+                if (edition >= 0){
+                    uskEditions.rollback(key+uskDocName, edition);
+                }
+                throw e;
+            }
+            trackUSKEdition(callback, key, uskDocName, filename, edition);
+            replyInsert(callback, mode, timeout, tc);
+            return new InsertOutcome(InsertOutcome.STARTED, callback);
+    }
+    
+    /**
+     * Sends the reply for a CHK insert found in the dedup index
+     * according to the reply mode of the insert
+     * 
+     * @param requestURI String : The requestURI of the earlier insert
+     * @param mode String : The reply mode of the insert
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    private void replyDeduplicated(String requestURI, String mode, ToadletContext tc) throws Exception{
+        JSONObject response = new JSONObject();
+        if (mode.equals(INSERT_MODE_STREAM)){
+            response.put("event", "success");
+            response.put("requestURI", requestURI);
+            response.put("deduplicated", true);
+            response.put("final", true);
+            JsonWriter writer = JsonWriter.forThread(false).value(response).raw('\n');
+            MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+            addOriginHeader(headers);
+            metrics.setReplyStatus(200);
+            tc.sendReplyHeaders(200, "OK", headers, "application/x-ndjson", writer.getSize());
+            tc.writeData(writer.getBuffer(), 0, writer.getSize());
+            return;
+        }
+        if (mode.equals(INSERT_MODE_ASYNC) || mode.equals(INSERT_MODE_URI)){
+            /*The status of a finished job, without a jobId as no job is started*/
+            response.put("status", "success");
+        }
+        response.put("requestURI", requestURI);
+        response.put("deduplicated", true);
+        writeJsonReply(tc, 200, "", response);
+    }
+    
+    /**
+     * Returns the docname of a USK insert asking for the next edition
+     * 
+     * @param key String : The insert key
+     * @param filename String : The docname, optionally followed by an edition that is replaced
+     * @return String : The docname or null if the key is not a USK or the filename is not a docname
+     */
+    private static String getUSKDocName(String key, String filename){
+        String[] parts = filename.split("/", -1);
+        if (!key.toUpperCase().startsWith("USK@") || parts[0].isEmpty() || parts.length > 2){
+            return null;
+        }
+        if (parts.length == 2){
+            try {
+                Long.parseLong(parts[1]);
+            }
+            catch (NumberFormatException e){
+                return null;
+            }
+        }
+        return parts[0];
+    }
+    
+    /**
+     * Assigns the next edition of a USK to an insert.
+     * The latest edition of a USK not seen before is looked up through the USK subscriptions.
+     * 
+     * @param key String : The USK insert key
+     * @param docName String : The docname of the USK
+     * @return long : The edition or -1 if other inserts to the USK held its lock or its lookup for uskInsertLockTimeout
+     * @throws Exception 
+     */
+    private long nextUSKEdition(final String key, final String docName) throws Exception{
+        return uskEditions.next(key+docName, new USKEditions.Lookup() {
+            @Override
+            public long latest() throws Exception {
+                USK usk = USK.create(new FreenetURI(key+docName+"/0").deriveRequestURIFromInsertURI());
+                Long latest = uskSubscriptions.await(usk, -1, getConfigLong("uskLookupTimeout", 10000));
+                if (latest == null){
+                    throw new IOException("Too many USK subscriptions to look up the latest edition");
+                }
+                return latest;
+            }
+        });
+    }
+    
+    /**
+     * Assigns the next edition of a USK to an insert that asks for it.
+     * A 503 reply is sent and the permit of the insert is released if the USK stays locked by other inserts.
+     * 
+     * @param key String : The insert key
+     * @param uskDocName String : The docname of the USK or null if the insert does not ask for the next edition
+     * @param permit InsertAdmission.Permit : The admission permit of the insert
+     * @param tc ToadletContext : The Context object
+     * @return long : The edition, -1 if the insert does not ask for one or -2 if the reply has been sent
+     * @throws Exception 
+     */
+    private long assignUSKEdition(String key, String uskDocName, InsertAdmission.Permit permit, ToadletContext tc) throws Exception{
+        if (uskDocName == null){
+            return -1;
+        }
+        long edition;
+        try {
+            edition = nextUSKEdition(key, uskDocName);
+        }
+        catch (Exception e){
+            permit.release();
+            throw e;
+        }
+        if (edition < 0){
+            permit.release();
+            writeReply(tc, 503, "text/plain", "Service Unavailable", "The USK is locked by other inserts, retry later");
+            return -2;
+        }
+        return edition;
+    }
+    
+    /**
+     * Keeps the editions assigned to a USK up to date with the outcome of an insert to it.
+     * An assigned edition is given back if the insert does not succeed. 
+     * An edition chosen by the client is recorded if the insert succeeds, 
+     * so later inserts of the next edition come after it.
+     * 
+     * @param callback InsertStatusCallback : The callback of the insert
+     * @param key String : The insert key
+     * @param uskDocName String : The docname of the USK or null if the insert did not ask for the next edition
+     * @param filename String : The inserted filename
+     * @param edition long : The assigned edition or -1
+     */
+    private void trackUSKEdition(InsertStatusCallback callback, String key, String uskDocName, String filename, long edition){
+        if (edition >= 0){
+            callback.setUSKEdition(key+uskDocName, edition, true);
+            return;
+        }
+        String docName = getUSKDocName(key, filename);
+        if (docName != null && docName.length() < filename.length()){
+            long chosen = Long.parseLong(filename.substring(docName.length() + 1));
+            if (chosen >= 0){
+                callback.setUSKEdition(key+docName, chosen, false);
+            }
+        }
+    }
+    
+    /**
+     * handleComputeCHK method computes the CHK requestURI of the data sent as request content
+     * using the node's CHK only insert mode, which encodes the data without sending any block to the network.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleComputeCHK(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+            String contenttype = httpr.getHeader("Content-Type");
+            String filename = match.get("filename");
+            Bucket data = httpr.getRawData();
+            data.setReadOnly();
+            InsertProfiles.Profile profile = insertProfiles.get(httpr.getParam("profile"));
+            if (profile == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid profile "+httpr.getParam("profile"));
+                return;
+            }
+            String priorityParam = httpr.getParam("priority");
+            short priority = profile.getPriority(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+            if (!priorityParam.isEmpty()){
+                priority = Short.parseShort(priorityParam);
+            }
+            if (!insertAdmission.isValidPriority(priority)){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid priority "+priority);
+                return;
+            }
+            CompressionPolicy.Decision compression = compressionPolicy.decide(httpr.getParam("compress"), contenttype, data);
+            if (compression == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid compress "+httpr.getParam("compress"));
+                return;
+            }
+            InsertAdmission.Permit permit = admitInsert(priority, data.size(), tc);
+            if (permit == null){
+                return;
+            }
+            if (insertDedup != null){
+                /*An earlier insert of the same data has the same URI*/
+                String requestURI;
+                try {
+                    requestURI = insertDedup.get(dedupKey(data, contenttype, filename, compression.compress, profile));
+                }
+                catch (IOException e){
+                    permit.release();
+                    throw e;
+                }
+                if (requestURI != null){
+                    permit.release();
+                    JSONObject response = new JSONObject();
+                    response.put("requestURI", requestURI);
+                    writeJsonReply(tc, 200, "", response);
+                    return;
+                }
+            }
+            InsertStatusCallback callback;
+            try {
+                countCompression(compression);
+                callback = insert("CHK@/", filename, contenttype, data, false, priority, false, compression.compress, profile, true, null, permit, null, false, tc);
+            }
+            catch (Exception e){
+                permit.release();
+                throw e;
+            }
+            int status;
+            try {
+                status = callback.getStatus();
+            }
+            catch (InterruptedException e){
+                callback.cancel();
+                throw e;
+            }
+            replyInsertOutcome(callback, status, 0, tc);
+    }
+    
+    /**
+     * handleInsertSite method gets the relevant parameters, 
+     * reads the files of the zip or tar archive sent as request content
+     * and inserts them as a single site manifest.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleInsertSite(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+            String contenttype = httpr.getHeader("Content-Type");
+            if (!SiteArchive.isSupported(contenttype)){
+                writeReply(tc, 415, "text/plain", "Unsupported Media Type", "Site content must be a zip or tar archive");
+                return;
+            }
+            String key = match.get("key")+"/";
+            String filename = match.get("filename");
+            String defaultName = httpr.getParam("defaultName", "index.html");
+            InsertProfiles.Profile profile = insertProfiles.get(httpr.getParam("profile"));
+            if (profile == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid profile "+httpr.getParam("profile"));
+                return;
+            }
+            String priorityParam = httpr.getParam("priority");
+            short priority = profile.getPriority(RequestStarter.INTERACTIVE_PRIORITY_CLASS);
+            boolean realtime = httpr.isParameterSet("realtime") ? isTrueParam(httpr.getParam("realtime")) : profile.isRealtime();
+            /*The files of a site have mixed types, so only the client decides*/
+            CompressionPolicy.Decision compression = compressionPolicy.decide(httpr.getParam("compress"));
+            if (compression == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid compress "+httpr.getParam("compress"));
+                return;
+            }
+            String mode = getInsertMode(httpr);
+            long timeout = getInsertTimeout(httpr);
+            boolean persistent = isTrueParam(httpr.getParam("persistent"));
+            if (mode == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid mode "+httpr.getParam("mode"));
+                return;
+            }
+            if (timeout < 0){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid timeout "+httpr.getParam("timeout"));
+                return;
+            }
+            if (persistent && insertJournal == null){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Persistent inserts are not enabled");
+                return;
+            }
+            if (!priorityParam.isEmpty()){
+                priority = Short.parseShort(priorityParam);
+            }
+            if (!insertAdmission.isValidPriority(priority)){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid priority "+priority);
+                return;
+            }
+            String uskDocName = null;
+            String editionParam = httpr.getParam("edition");
+            if (!editionParam.isEmpty()){
+                uskDocName = getUSKDocName(key, filename);
+                if (!editionParam.equals("next") || uskDocName == null){
+                    writeReply(tc, 400, "text/plain", "Bad Request", "Invalid edition "+editionParam+", only next is supported for USK inserts");
+                    return;
+                }
+            }
+            SiteArchive archive;
+            try {
+                archive = readSiteArchive(httpr.getRawData(), contenttype);
+            }
+            catch (SiteArchive.TooLargeException ex){
+                writeReply(tc, 413, "text/plain", "Payload Too Large", ex.getMessage());
+                return;
+            }
+            catch (IOException ex){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Archive decoding error "+ex.toString());
+                return;
+            }
+            if (archive.isEmpty()){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Archive contains no files");
+                return;
+            }
+            /*The extracted files are admitted rather than the archive, which may be much smaller*/
+            InsertAdmission.Permit permit;
+            long edition;
+            try {
+                permit = admitInsert(priority, archive.getSize(), tc);
+                edition = permit == null ? -2 : assignUSKEdition(key, uskDocName, permit, tc);
+            }
+            catch (Exception e){
+                archive.free();
+                throw e;
+            }
+            if (edition == -2){
+                archive.free();
+                return;
+            }
+            if (edition >= 0){
+                filename = uskDocName+"/"+edition;
+            }
+            InsertStatusCallback callback;
+            String jobId = newJobId(mode, persistent);
+            try {
+                if (persistent){
+                    journalInsert(jobId, httpr.getRawData(), "insertsite", key, filename, contenttype, defaultName, priority, realtime, compression.compress, profile, timeout);
+                }
+                countCompression(compression);
+                callback = insertSite(key, filename, defaultName, archive, priority, realtime, compression.compress, profile, permit, jobId, persistent, tc);
+            }
+            catch (Exception e){
+                archive.free();
+                permit.release();
+                if (persistent){
+                    insertJournal.remove(jobId);
+                }
+                if (edition >= 0){
+                    uskEditions.rollback(key+uskDocName, edition);
+                }
+                throw e;
+            }
+            trackUSKEdition(callback, key, uskDocName, filename, edition);
+            replyInsert(callback, mode, timeout, tc);
+    }
+    
+    /**
+     * Reads the files of a site archive within the siteMaxBytes (config, default insertMaxBytes) 
+     * and siteMaxFiles (config, default 10000) limits
+     * 
+     * @param data Bucket : The archive
+     * @param contenttype String : The content type of the archive
+     * @return SiteArchive
+     * @throws SiteArchive.TooLargeException if the files are over the limits
+     * @throws IOException 
+     */
+    private SiteArchive readSiteArchive(Bucket data, String contenttype) throws IOException{
+        return SiteArchive.read(data, contenttype, services.tempBucketFactory, 
+                getConfigLong("siteMaxBytes", getConfigLong("insertMaxBytes", 1073741824)), (int)getConfigLong("siteMaxFiles", 10000));
+    }
+    
+    /**
+     * Admits an insert to the admission control.
+     * If the insert is rejected the reply is sent: 
+     * 413 if the insert alone is over the byte limits, 
+     * otherwise 429 with a Retry-After header.
+     * 
+     * @param priority short : The priority class of the insert
+     * @param size long : The bytes held by the insert
+     * @param tc ToadletContext : The Context object
+     * @return InsertAdmission.Permit : The permit of the insert or null if it was rejected
+     * @throws Exception 
+     */
+    private InsertAdmission.Permit admitInsert(short priority, long size, ToadletContext tc) throws Exception{
+        if (!insertAdmission.fits(priority, size)){
+            metrics.increment("restfreenet_insert_rejected_total", Metrics.label("reason", "too_large"), 1);
+            writeReply(tc, 413, "text/plain", "Payload Too Large", "Insert data is over the configured limit");
+            return null;
+        }
+        InsertAdmission.Permit permit = insertAdmission.acquire(priority, size);
+        if (permit == null){
+            metrics.increment("restfreenet_insert_rejected_total", Metrics.label("reason", "overloaded"), 1);
+            MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+            headers.put("Retry-After", String.valueOf(getConfigLong("insertRetryAfter", 5)));
+            addOriginHeader(headers);
+            metrics.setReplyStatus(429);
+            super.writeReply(tc, 429, "text/plain", "Too Many Requests", headers, "Too many inserts in progress, retry later");
+        }
+        return permit;
+    }
+    
+    /**
+     * Returns the reply mode of an insert from the mode parameter.
+     * async=true is kept as an alias of mode=async.
+     * 
+     * @param httpr HTTPRequest : The request object
+     * @return String : One of the INSERT_MODE_ constants or null if the mode is not known
+     */
+    private String getInsertMode(HTTPRequest httpr){
+        String mode = httpr.getParam("mode");
+        if (mode.isEmpty()){
+            return isTrueParam(httpr.getParam("async")) ? INSERT_MODE_ASYNC : INSERT_MODE_SYNC;
+        }
+        for (String known : new String[]{INSERT_MODE_SYNC, INSERT_MODE_ASYNC, INSERT_MODE_URI, INSERT_MODE_STREAM}){
+            if (known.equals(mode)){
+                return known;
+            }
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the id of a new insert job, 
+     * which is registered before the insert starts so it is there even if the insert finishes at once
+     * 
+     * @param mode String : The reply mode of the insert
+     * @param persistent boolean : If the insert is kept in the journal
+     * @return String : The id or null if the insert does not run as a job
+     */
+    private static String newJobId(String mode, boolean persistent){
+        if (persistent || mode.equals(INSERT_MODE_ASYNC) || mode.equals(INSERT_MODE_URI)){
+            return UUID.randomUUID().toString();
+        }
+        return null;
+    }
+    
+    /**
+     * Returns the deadline of an insert from the timeout parameter 
+     * or the insertTimeout config entry
+     * 
+     * @param httpr HTTPRequest : The request object
+     * @return long : The deadline in milliseconds, 0 for none, or -1 if the parameter is not a valid timeout
+     */
+    private long getInsertTimeout(HTTPRequest httpr){
+        String timeoutParam = httpr.getParam("timeout");
+        if (timeoutParam.isEmpty()){
+            return getConfigLong("insertTimeout", 0);
+        }
+        long timeout;
+        try {
+            timeout = Long.parseLong(timeoutParam);
+        }
+        catch (NumberFormatException e){
+            return -1;
+        }
+        return timeout < 0 ? -1 : timeout;
+    }
+    
+    /**
+     * Sends the reply for an insert according to its mode.
+     * sync: the reply is sent when the insert has finished.
+     * async: the job is registered and the reply is sent immediately.
+     * uri: the job is registered and the reply is sent as soon as the URI is generated.
+     * stream: the progress of the insert is streamed as newline delimited json events.
+     * An insert still running at its deadline is cancelled. 
+     * An insert is also cancelled if its job id or its events cannot be sent to the client, 
+     * as nobody could ever ask for its outcome.
+     * 
+     * @param callback InsertStatusCallback : The callback of the insert
+     * @param mode String : The reply mode of the insert
+     * @param timeout long : The deadline of the insert in milliseconds, 0 for none
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    private void replyInsert(InsertStatusCallback callback, String mode, long timeout, ToadletContext tc) throws Exception{
+            callback.setDeadline(timeout);
+            if (mode.equals(INSERT_MODE_STREAM)){
+                streamInsert(callback, tc);
+                return;
+            }
+            if (mode.equals(INSERT_MODE_ASYNC) || mode.equals(INSERT_MODE_URI)){
+                /*Return without waiting for the insert to finish, the job was registered when it started*/
+                String jobId = callback.getJobId();
+                int code = 202;
+                String desc = "Accepted";
+                if (mode.equals(INSERT_MODE_URI)){
+                    int status;
+                    try {
+                        status = callback.awaitURI();
+                    }
+                    catch (InterruptedException e){
+                        insertJobs.remove(jobId);
+                        callback.cancel();
+                        throw e;
+                    }
+                    if (status == InsertStatusCallback.STATUS_SUCCESS){
+                        code = 200;
+                        desc = "";
+                    }
+                    else if (status != InsertStatusCallback.STATUS_RUNNING){
+                        replyInsertOutcome(callback, status, timeout, tc);
+                        return;
+                    }
+                }
+                try {
+                    writeJsonReply(tc, code, desc, insertJobToJson(jobId, callback));
+                }
+                catch (ToadletContextClosedException e){
+                    insertJobs.remove(jobId);
+                    callback.cancel();
+                    throw e;
+                }
+                catch (IOException e){
+                    insertJobs.remove(jobId);
+                    callback.cancel();
+                    throw e;
+                }
+                return;
+            }
+            int status;
+            try {
+                status = callback.getStatus();
+            }
+            catch (InterruptedException e){
+                callback.cancel();
+                throw e;
+            }
+            replyInsertOutcome(callback, status, timeout, tc);
+    }
+    
+    /**
+     * Sends the reply for a finished insert
+     * 
+     * @param callback InsertStatusCallback : The callback of the insert
+     * @param status int : The final status of the insert
+     * @param timeout long : The deadline of the insert in milliseconds, 0 for none
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    private void replyInsertOutcome(InsertStatusCallback callback, int status, long timeout, ToadletContext tc) throws Exception{
+            if (status == InsertStatusCallback.STATUS_SUCCESS){
+                /*Create the json object with the URI pair to return*/
+                JSONObject response = new JSONObject();
+                response.put("requestURI", callback.getInsertedURI().toString());
+                /*Send the reply*/
+                writeJsonReply(tc, 200, "", response);
+            }
+            else if (status == InsertStatusCallback.STATUS_FAILURE){
+                /*Send the reply*/
+                writeReply(tc, 500, "text/plain", "", "Insert failed "+callback.getInsertException().toString());
+            }
+            else if (status == InsertStatusCallback.STATUS_CANCELLED && callback.isTimedOut()){
+                /*Send the reply*/
+                writeReply(tc, 504, "text/plain", "Gateway Timeout", "Insert did not finish within "+timeout+" ms and was cancelled");
+            }
+            else if (status == InsertStatusCallback.STATUS_CANCELLED ){
+                /*Send the reply*/
+                writeReply(tc, 500, "text/plain", "", "Insert was cancelled");
+            }
+    }
+    
+    /**
+     * Streams the progress of an insert as newline delimited json events 
+     * until a final event (success, failure or cancelled) is sent.
+     * A heartbeat event is sent when nothing happens for insertStreamHeartbeat milliseconds.
+     * The reply has no length, so the connection is closed after the last event.
+     * The insert is cancelled if an event cannot be sent to the client.
+     * 
+     * @param callback InsertStatusCallback : The callback of the insert
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    private void streamInsert(InsertStatusCallback callback, ToadletContext tc) throws Exception{
+            BlockingQueue<JSONObject> events = callback.subscribe();
+            long heartbeat = getConfigLong("insertStreamHeartbeat", 15000);
+            MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+            headers.put("Cache-Control", "no-cache");
+            addOriginHeader(headers);
+            metrics.setReplyStatus(200);
+            try {
+                tc.forceDisconnect();
+                tc.sendReplyHeaders(200, "OK", headers, "application/x-ndjson", -1);
+                while (true){
+                    JSONObject event = events.poll(heartbeat, TimeUnit.MILLISECONDS);
+                    if (event == null){
+                        event = new JSONObject();
+                        event.put("event", "heartbeat");
+                    }
+                    JsonWriter writer = JsonWriter.forThread(false).value(event).raw('\n');
+                    tc.writeData(writer.getBuffer(), 0, writer.getSize());
+                    if (Boolean.TRUE.equals(event.get("final"))){
+                        return;
+                    }
+                }
+            }
+            catch (ToadletContextClosedException e){
+                callback.cancel();
+                throw e;
+            }
+            catch (IOException e){
+                callback.cancel();
+                throw e;
+            }
+            catch (InterruptedException e){
+                callback.cancel();
+                throw e;
+            }
+    }
+    
+    /**
+     * handleFetch method fetches the data of a requestURI 
+     * and streams it as reply honoring Range requests.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleFetch(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        FreenetURI requestUri;
+        try {
+            String requestKey = match.get("requestURI");
+            if (requestKey.isEmpty()){
+                throw new MalformedURLException("No requestURI given");
+            }
+            requestUri = new FreenetURI(requestKey);
+        }
+        catch (Exception ex){
+            writeReply(tc, 400, "text/plain", "Bad Request", ex.toString());
+            return;
+        }
+        String etag = getImmutableETag(requestUri);
+        if (etag != null && isNotModified(httpr, etag)){
+            MultiValueTable<String, String> headers = new MultiValueTable<String, String>();
+            addCachingHeaders(headers, etag);
+            addOriginHeader(headers);
+            metrics.setReplyStatus(304);
+            metrics.increment("restfreenet_fetch_not_modified_total", "", 1);
+            sendCachingReplyHeaders(tc, 304, "Not Modified", headers, null, -1, etag);
+            return;
+        }
+        FetchCache.Entry entry;
+        try {
+            entry = fetchCache.get(requestUri);
+        }
+        catch (FetchException ex){
+            if (ex.isDNF()){
+                writeReply(tc, 404, "text/plain", "Not Found", "Fetch failed "+ex.toString());
+            }
+            else {
+                writeReply(tc, 500, "text/plain", "Error", "Fetch failed "+ex.toString());
+            }
+            return;
+        }
+        try {
+            writeBucketReply(httpr, tc, entry.getMimeType(), entry.getData(), etag);
+        }
+        finally {
+            entry.release();
+        }
+    }
+    
+    /**
+     * handleUSKEdition method sends the latest edition of a USK known to the subscription cache.
+     * With since, it waits until an edition newer than since is found or the timeout passes (long-poll).
+     * Without since, it waits only until the first edition of a newly subscribed USK is found.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleUSKEdition(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        USK usk;
+        long since;
+        long timeout;
+        try {
+            String requestKey = match.get("requestURI");
+            if (requestKey.isEmpty()){
+                throw new MalformedURLException("No requestURI given");
+            }
+            FreenetURI requestUri = new FreenetURI(requestKey);
+            if (!requestUri.isUSK()){
+                throw new MalformedURLException("Not a USK: "+requestKey);
+            }
+            usk = USK.create(requestUri);
+            String sinceParam = httpr.getParam("since");
+            since = sinceParam.isEmpty() ? -1 : Long.parseLong(sinceParam);
+            String timeoutParam = httpr.getParam("timeout");
+            if (!timeoutParam.isEmpty()){
+                timeout = Long.parseLong(timeoutParam);
+            }
+            else if (sinceParam.isEmpty()){
+                timeout = getConfigLong("uskLookupTimeout", 10000);
+            }
+            else {
+                timeout = getConfigLong("uskPollTimeout", 30000);
+            }
+            if (timeout < 0){
+                throw new NumberFormatException("Negative timeout "+timeout);
+            }
+            timeout = Math.min(timeout, getConfigLong("uskPollMaxTimeout", 120000));
+        }
+        catch (Exception ex){
+            writeReply(tc, 400, "text/plain", "Bad Request", ex.toString());
+            return;
+        }
+        Long edition = uskSubscriptions.await(usk, since, timeout);
+        if (edition == null){
+            writeReply(tc, 503, "text/plain", "Service Unavailable", "Too many USK subscriptions, retry later");
+            return;
+        }
+        if (edition < 0){
+            writeReply(tc, 404, "text/plain", "Not Found", "No edition of the USK has been found yet");
+            return;
+        }
+        JSONObject response = new JSONObject();
+        response.put("edition", edition);
+        response.put("requestURI", usk.copy(edition).getURI().toString());
+        writeJsonReply(tc, 200, "", response);
+    }
+    
+    /**
+     * handleFetchCacheStats method sends the statistics of the fetch cache
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleFetchCacheStats(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        JSONObject response = new JSONObject();
+        response.putAll(fetchCache.getStats());
+        writeJsonReply(tc, 200, "", response);
     }
     
     /**
-     * Resturns the path
+     * handleMetrics method sends the metrics of the plugin in the Prometheus text format
      * 
-     * @return String 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
      */
-    @Override
-    public String path() {
-            return path;
+    public void handleMetrics(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        StringBuilder out = new StringBuilder();
+        metrics.write(out);
+        Metrics.writeGauges(out, "restfreenet_fetch_cache_", fetchCache.getStats());
+        Metrics.writeGauges(out, "restfreenet_insert_admission_", insertAdmission.getStats());
+        Metrics.writeGauges(out, "restfreenet_usk_", uskSubscriptions.getStats());
+        Metrics.writeGauges(out, "restfreenet_usk_insert_", uskEditions.getStats());
+        if (uploads != null){
+            Metrics.writeGauges(out, "restfreenet_upload_", uploads.getStats());
+        }
+        if (insertDedup != null){
+            Metrics.writeGauges(out, "restfreenet_insert_dedup_", insertDedup.getStats());
+        }
+        writeReply(tc, 200, "text/plain; version=0.0.4", "", out.toString());
     }
-
+    
     /**
-     * Implementation of handleMethodGET
-     * This method handles HTTP GET requests
+     * handleInsertStatus method sends the current state of an asynchronous insert job.
      * 
-     * @param uri URI : The URI of the request
+     * @param match RouteTable.Match : The matched route 
      * @param httpr HTTPRequest : The request object
      * @param tc ToadletContext : The Context object
-     * @throws ToadletContextClosedException
-     * @throws IOException
-     * @throws RedirectException 
+     * @throws Exception 
      */
-    @Override
-    public void handleMethodGET(URI uri, HTTPRequest httpr, ToadletContext tc) throws ToadletContextClosedException, IOException, RedirectException {
-        String action;
-        try {
-            action = getActionFromUri(uri);
+    public void handleInsertStatus(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        String jobId = match.get("jobId");
+        InsertStatusCallback callback = insertJobs.get(jobId);
+        if (callback == null){
+            writeReply(tc, 404, "text/plain", "Not Found", "Insert job not found");
+            return;
+        }
+        writeJsonReply(tc, 200, "", insertJobToJson(jobId, callback), CACHE_NO_STORE);
+    }
+    
+    /**
+     * handleInsertCancel method cancels a running asynchronous insert job.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleInsertCancel(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        String jobId = match.get("jobId");
+        InsertStatusCallback callback = insertJobs.get(jobId);
+        if (callback == null){
+            writeReply(tc, 404, "text/plain", "Not Found", "Insert job not found");
+            return;
         }
-        catch (Exception ex) {
-            writeReply(tc, 400, "text/plain", "error", "Bad request");
+        if (!callback.cancel()){
+            writeReply(tc, 409, "text/plain", "Conflict", "Insert job has already finished");
             return;
         }
-        try {
-            if (action.equalsIgnoreCase("keygen")){
-                handleKeygen(uri, httpr, tc);
-            }
-            else if (action.equalsIgnoreCase("resname")){
-                handleResname(uri, httpr, tc);
+        writeJsonReply(tc, 200, "", insertJobToJson(jobId, callback));
+    }
+    
+    /**
+     * handleUploadStart method creates a resumable upload session.
+     * The optional length parameter is the total length of the data 
+     * and the Content-Type header is the content type used by the insert if it does not give one.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleUploadStart(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        if (uploads == null){
+            writeReply(tc, 503, "text/plain", "Service Unavailable", "Resumable uploads are not available");
+            return;
+        }
+        long length = -1;
+        String lengthParam = httpr.getParam("length");
+        if (!lengthParam.isEmpty()){
+            try {
+                length = Long.parseLong(lengthParam);
             }
-            else if (action.equalsIgnoreCase("wsfreenetstatus")){
-                handleGetWSFreenetStatus(uri, httpr, tc);
+            catch (NumberFormatException e){
+                length = -2;
             }
-            else if (action.equalsIgnoreCase("status")){
-                writeReply(tc, 200, "text/plain", "OK", "OK");
+            if (length < 0){
+                writeReply(tc, 400, "text/plain", "Bad Request", "Invalid length "+lengthParam);
+                return;
             }
-            else {
-                writeReply(tc, 405, "text/plain", "error", "Requested action is not supported");
+            if (length > uploads.getMaxBytes()){
+                writeReply(tc, 413, "text/plain", "Payload Too Large", "The upload is larger than "+uploads.getMaxBytes()+" bytes");
+                return;
             }
-        } catch (Exception e){ 
-            writeReply(tc, 500, "text/plain", "error", "Server error: "+e.toString());
-        }  
+        }
+        UploadSessions.Session session = uploads.create(httpr.getHeader("Content-Type"), length);
+        if (session == null){
+            writeReply(tc, 503, "text/plain", "Service Unavailable", "Too many uploads in progress, retry later");
+            return;
+        }
+        writeJsonReply(tc, 201, "Created", uploads.getState(session.getId()));
     }
     
     /**
-     * handleMethodPOST method handles HTTP POST requests
+     * handleUploadChunk method appends the request content to the data of an upload session.
+     * The offset parameter must be the number of bytes received so far, 
+     * otherwise a 409 reply with the current offset is sent so the client resumes from there.
      * 
-     * @param uri URI : The URI of the request
+     * @param match RouteTable.Match : The matched route 
      * @param httpr HTTPRequest : The request object
      * @param tc ToadletContext : The Context object
-     * @throws ToadletContextClosedException
-     * @throws IOException
-     * @throws RedirectException 
+     * @throws Exception 
      */
-    public void handleMethodPOST(URI uri, HTTPRequest httpr, ToadletContext tc) throws ToadletContextClosedException, IOException, RedirectException{
-        String action;
-        try {
-            action = getActionFromUri(uri);
-        } catch (Exception ex) {
-            writeReply(tc, 400, "text/plain", "error", "Bad request");
+    public void handleUploadChunk(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        if (uploads == null){
+            writeReply(tc, 503, "text/plain", "Service Unavailable", "Resumable uploads are not available");
             return;
         }
+        String uploadId = match.get("uploadId");
+        long offset;
         try {
-            if (action.equalsIgnoreCase("insert")){
-                handleInsert(uri, httpr, tc);
-            }
-            else if (action.equalsIgnoreCase("regname")){
-                handleRegName(uri, httpr, tc);
-            }
-            else {
-                writeReply(tc, 405, "text/plain", "error", "Requested action is not supported");
-            }
-        } catch (Exception e){
-            writeReply(tc, 500, "text/plain", "error", "Server error: "+e.toString());
+            offset = Long.parseLong(httpr.getParam("offset"));
+        }
+        catch (NumberFormatException e){
+            writeReply(tc, 400, "text/plain", "Bad Request", "Invalid offset "+httpr.getParam("offset"));
+            return;
+        }
+        Bucket chunk = httpr.getRawData();
+        if (chunk == null){
+            writeReply(tc, 400, "text/plain", "Bad Request", "Missing chunk data");
+            return;
+        }
+        int result = uploads.append(uploadId, offset, chunk);
+        if (!replyUploadResult(result, uploadId, tc)){
+            return;
         }
+        metrics.increment("restfreenet_upload_chunks_total", "", 1);
+        writeJsonReply(tc, 200, "", uploads.getState(uploadId));
     }
     
-    @Override
-    protected void writeReply(ToadletContext tc, int code, String mimeType, String desc, String reply) throws ToadletContextClosedException, IOException{
-        MultiValueTable<String, String> headers = tc.getHeaders();
-        headers.remove("content-length");
-        String origin = (String)config.getOrDefault("Access-Control-Allow-Origin", null);
-        if (origin != null){
-            headers.put("Access-Control-Allow-Origin", origin);
+    /**
+     * handleUploadStatus method sends the state of an upload session, 
+     * i.e. the offset the next chunk starts at
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleUploadStatus(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        Map<String, Object> state = uploads == null ? null : uploads.getState(match.get("uploadId"));
+        if (state == null){
+            writeReply(tc, 404, "text/plain", "Not Found", "Upload not found");
+            return;
         }
-        super.writeReply(tc, code, mimeType, desc, headers, reply);
+        writeJsonReply(tc, 200, "", state, CACHE_NO_STORE);
     }
     
     /**
-     * handleInsert method gets the relevant parameters, 
-     * calls the method that does the insert 
-     * and sends the reply for requests to insert data.
+     * handleUploadCancel method removes an upload session and its data
      * 
-     * @param uri URI : The URI of the request 
+     * @param match RouteTable.Match : The matched route 
      * @param httpr HTTPRequest : The request object
      * @param tc ToadletContext : The Context object
      * @throws Exception 
      */
-    public void handleInsert(URI uri, HTTPRequest httpr, ToadletContext tc) throws Exception{
-            String contenttype = httpr.getHeader("Content-Type");
-            Map<String,String> params = getInsertParamsFromUri(uri);
-            String key = params.get("key");
-            String filename = params.get("filename");
-            Bucket data = httpr.getRawData();
-            data.setReadOnly();
-            String priorityParam = httpr.getParam("priority");
-            String realtimeParam = httpr.getParam("realtime");
-            short priority = RequestStarter.INTERACTIVE_PRIORITY_CLASS;
-            boolean realtime = false;
-            if (realtimeParam.equals("1") || realtimeParam.equalsIgnoreCase("true") || realtimeParam.equalsIgnoreCase("yes")){
-                realtime = true;
-            }
-            if (!priorityParam.isEmpty()){
-                priority = Short.parseShort(priorityParam);
+    public void handleUploadCancel(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        String uploadId = match.get("uploadId");
+        if (uploads == null){
+            writeReply(tc, 404, "text/plain", "Not Found", "Upload not found");
+            return;
+        }
+        if (!replyUploadResult(uploads.cancel(uploadId), uploadId, tc)){
+            return;
+        }
+        JSONObject response = new JSONObject();
+        response.put("uploadId", uploadId);
+        response.put("cancelled", true);
+        writeJsonReply(tc, 200, "", response);
+    }
+    
+    /**
+     * handleUploadInsert method inserts the data of a complete upload session
+     * with the same parameters and replies as an insert request.
+     * The session is removed once the insert has started or has been answered from the dedup index, 
+     * otherwise it is kept so the insert can be retried.
+     * 
+     * @param match RouteTable.Match : The matched route 
+     * @param httpr HTTPRequest : The request object
+     * @param tc ToadletContext : The Context object
+     * @throws Exception 
+     */
+    public void handleUploadInsert(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
+        String uploadId = match.get("uploadId");
+        UploadSessions.Session session = uploads == null ? null : uploads.claim(uploadId);
+        if (session == null){
+            if (uploads != null && uploads.getState(uploadId) != null){
+                replyUploadResult(UploadSessions.BUSY, uploadId, tc);
+                return;
             }
-
-            InsertStatusCallback callback = insert(key, filename, contenttype, data, priority, realtime, tc);
-            int status = callback.getStatus();
-            if (status == InsertStatusCallback.STATUS_SUCCESS){
-                /*Create the json object with the URI pair to return*/
-                JSONObject response = new JSONObject();
-                response.put("requestURI", callback.getInsertedURI().toString());
-                /*Send the reply*/
-                writeReply(tc, 200, "application/json", "", response.toJSONString());
+            writeReply(tc, 404, "text/plain", "Not Found", "Upload not found");
+            return;
+        }
+        if (!uploads.isComplete(session)){
+            uploads.release(session, false);
+            writeJsonReply(tc, 409, "Conflict", uploads.getState(uploadId));
+            return;
+        }
+        String contenttype = httpr.getHeader("Content-Type");
+        if (contenttype == null || contenttype.isEmpty()){
+            contenttype = session.getContentType();
+        }
+        Bucket data = new FileBucket(session.getFile(), false, false, false, true);
+        InsertOutcome outcome;
+        try {
+            outcome = insertData(match.get("key")+"/", match.get("filename"), contenttype, data, true, httpr, tc);
+        }
+        catch (Exception e){
+            /*The session is kept for another try only if the failed insert has not freed the file*/
+            uploads.release(session, !session.getFile().exists());
+            throw e;
+        }
+        if (outcome.result == InsertOutcome.REFUSED){
+            /*E.g. for a bad parameter or no room for the insert, the client may try again*/
+            uploads.release(session, false);
+            return;
+        }
+        uploads.release(session, true);
+        if (outcome.callback == null || !outcome.callback.holds(data)){
+            data.free();
+        }
+    }
+    
+    /**
+     * Sends the error reply for the result of an operation on an upload session
+     * 
+     * @param result int : The result, one of the UploadSessions constants
+     * @param uploadId String : The id of the session
+     * @param tc ToadletContext : The Context object
+     * @return boolean : true if the result is OK and no reply was sent
+     * @throws ToadletContextClosedException
+     * @throws IOException 
+     */
+    private boolean replyUploadResult(int result, String uploadId, ToadletContext tc) throws ToadletContextClosedException, IOException{
+        switch (result){
+            case UploadSessions.OK:
+                return true;
+            case UploadSessions.NOT_FOUND:
+                writeReply(tc, 404, "text/plain", "Not Found", "Upload not found");
+                return false;
+            case UploadSessions.BUSY:
+                writeReply(tc, 409, "text/plain", "Conflict", "Another request on the upload is in progress");
+                return false;
+            case UploadSessions.BAD_OFFSET:
+                Map<String, Object> state = uploads.getState(uploadId);
+                if (state == null){
+                    writeReply(tc, 404, "text/plain", "Not Found", "Upload not found");
+                    return false;
+                }
+                writeJsonReply(tc, 409, "Conflict", state);
+                return false;
+            default:
+                writeReply(tc, 413, "text/plain", "Payload Too Large", "The chunk goes past the length of the upload");
+                return false;
+        }
+    }
+    
+    /**
+     * Creates the json object describing an insert job
+     * 
+     * @param jobId String : The id of the job
+     * @param callback InsertStatusCallback : The callback of the job's insert
+     * @return JSONObject
+     */
+    private JSONObject insertJobToJson(String jobId, InsertStatusCallback callback){
+        JSONObject response = new JSONObject();
+        response.put("jobId", jobId);
+        int status = callback.getCurrentStatus();
+        if (status == InsertStatusCallback.STATUS_SUCCESS){
+            response.put("status", "success");
+            response.put("requestURI", callback.getInsertedURI().toString());
+        }
+        else if (status == InsertStatusCallback.STATUS_FAILURE){
+            response.put("status", "failure");
+            response.put("error", callback.getInsertException().toString());
+        }
+        else if (status == InsertStatusCallback.STATUS_CANCELLED){
+            response.put("status", "cancelled");
+            if (callback.isTimedOut()){
+                response.put("reason", "timeout");
             }
-            else if (status == InsertStatusCallback.STATUS_FAILURE){
-                /*Send the reply*/
-                writeReply(tc, 500, "text/plain", "", "Insert failed "+callback.getInsertException().toString());
+            else if (callback.isSuspended()){
+                response.put("reason", "shutdown");
             }
-            else if (status == InsertStatusCallback.STATUS_CANCELLED ){
-                /*Send the reply*/
-                writeReply(tc, 500, "text/plain", "", "Insert was cancelled");
+        }
+        else {
+            response.put("status", "running");
+            FreenetURI insertedURI = callback.getInsertedURI();
+            if (insertedURI != null){
+                response.put("requestURI", insertedURI.toString());
             }
+            response.put("fetchable", callback.isFetchable());
+        }
+        return response;
     }
     
     /**
@@ -233,18 +2254,14 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
      * calls the method that does the key generation 
      * and sends the reply for requests to generate a key pair. 
      * 
-     * @param uri URI : The URI of the request 
+     * @param match RouteTable.Match : The matched route 
      * @param httpr HTTPRequest : The request object 
      * @param tc ToadletContext : The Context object
      * @throws Exception 
      */
-    public void handleKeygen(URI uri, HTTPRequest httpr, ToadletContext tc) throws Exception{
+    public void handleKeygen(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
         try {
-            String insertUri;
-            String requestUri;
-            
-            Map<String,String> params = getKeygenParamsFromUri(uri);
-            String keytype = params.get("keytype");
+            String keytype = match.get("keytype").toUpperCase();
             String filename = httpr.getParam("filename");
             if (filename.isEmpty()){
                 filename = "";
@@ -256,42 +2273,79 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
                 version= Integer.parseUnsignedInt(versionString);
             }
             
-            if (keytype.equalsIgnoreCase("SSK")){
-                InsertableClientSSK key = keygenSSK(filename, version);
-                insertUri = key.getInsertURI().toString();
-                requestUri = key.getURI().toString();
-            }
-            else if (keytype.equalsIgnoreCase("USK")){
-                /*For USK we create an SSK and transorm insertURI and requestURI to USK*/
-                InsertableClientSSK key = keygenSSK(filename);
-                insertUri = key.getInsertURI().toString().replace("SSK","USK");
-                requestUri = key.getURI().toString().replace("SSK","USK");
-                if (!filename.equals("")){
-                    /*If no filename is provided we ignore version*/
-                    if (version < 0){
-                        insertUri+="/0";
-                        requestUri+="/-1";
-                    }
-                    else {
-                        insertUri+="/"+version;
-                        requestUri+="/"+version;
-                    }
+            int count = 0;
+            String countString = httpr.getParam("count");
+            if (!countString.isEmpty()){
+                count = Integer.parseInt(countString);
+                if (count < 1 || count > getConfigLong("keygenMaxCount", 1000)){
+                    writeReply(tc, 400, "text/plain", "Bad Request", "Requested count is out of range");
+                    return;
                 }
             }
-            else {
+            
+            if (!keytype.equalsIgnoreCase("SSK") && !keytype.equalsIgnoreCase("USK")){
                 writeReply(tc, 405, "text/plain", "", "Requested keytype is not supported");
                 return;
             }
-            /*Create the json object with the URI pair to return*/
-            JSONObject response = new JSONObject();
-            response.put("insertURI", insertUri);
-            response.put("requestURI", requestUri);
-            /*Send the reply*/
-            writeReply(tc, 200, "application/json", "", response.toJSONString());
+            JSONObject response;
+            if (count == 0){
+                response = keygenPair(keytype, filename, version);
+            }
+            else {
+                /*Create a json array with count URI pairs*/
+                JSONArray keys = new JSONArray();
+                for (int i=0; i<count; i++){
+                    keys.add(keygenPair(keytype, filename, version));
+                }
+                response = new JSONObject();
+                response.put("keys", keys);
+            }
+            /*Send the reply, a new key pair every time*/
+            writeJsonReply(tc, 200, "", response, CACHE_NO_STORE);
         } catch (Exception e){
             throw e;
         }        
     }
+    
+    /**
+     * Generates a key pair of the given keytype
+     * 
+     * @param keytype String : SSK or USK
+     * @param filename String : The filename
+     * @param version int : The version or -1
+     * @return JSONObject : The json object with the URI pair
+     */
+    private JSONObject keygenPair(String keytype, String filename, int version){
+        String insertUri;
+        String requestUri;
+        if (keytype.equalsIgnoreCase("SSK")){
+            FreenetURI[] key = keygenSSK(filename, version);
+            insertUri = key[0].toString();
+            requestUri = key[1].toString();
+        }
+        else {
+            /*For USK we create an SSK and transorm insertURI and requestURI to USK*/
+            FreenetURI[] key = keygenSSK(filename);
+            insertUri = key[0].toString().replace("SSK","USK");
+            requestUri = key[1].toString().replace("SSK","USK");
+            if (!filename.equals("")){
+                /*If no filename is provided we ignore version*/
+                if (version < 0){
+                    insertUri+="/0";
+                    requestUri+="/-1";
+                }
+                else {
+                    insertUri+="/"+version;
+                    requestUri+="/"+version;
+                }
+            }
+        }
+        /*Create the json object with the URI pair to return*/
+        JSONObject pair = new JSONObject();
+        pair.put("insertURI", insertUri);
+        pair.put("requestURI", requestUri);
+        return pair;
+    }
 
     /**
      * isEnabled returns true
@@ -324,90 +2378,79 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
     }
     
     /**
-     * Gets the action from the request URI.
-     * The action is the third part of the path as it follows host and /rest/
+     * Returns true if a boolean request parameter is set to 1, true or yes
      * 
-     * @param uri URI : The URI of the request 
-     * @return String
-     * @throws Exception 
+     * @param param String : The parameter value
+     * @return boolean
      */
-    private String getActionFromUri(URI uri) throws Exception{
-        try {
-            return uri.toString().split("/")[2];
-        }
-        catch (Exception e){
-            throw e;
-        }
+    private boolean isTrueParam(String param){
+        return param.equals("1") || param.equalsIgnoreCase("true") || param.equalsIgnoreCase("yes");
     }
     
     /**
-     * Gets the params from a request to insert data
+     * Returns a numeric value from the configuration
      * 
-     * @param uri URI : The URI of the request 
-     * @return Map<String,String> : Parameter name => Parameter value
-     * @throws Exception 
+     * @param name String : The name of the configuration entry
+     * @param defaultValue long : The value used when the entry is not set
+     * @return long
      */
-    private Map<String,String> getInsertParamsFromUri(URI uri) throws Exception{
-        try {
-            Map<String,String> params = new HashMap();
-            String uriString = uri.getPath();
-            String[] uriParts = uriString.split("/");
-            params.put("action", uriParts[2]);
-            params.put("key", uriParts[3]+"/");
-            String filename = "";
-            if (uriParts.length > 4){
-                for (int i=4; i<uriParts.length; i++){
-                    filename += uriParts[i];
-                    if (i<uriParts.length-1){
-                        filename += "/";
-                    }
-                }
-            }
-            params.put("filename", filename);
-            return params;
-        }
-        catch (Exception e){
-            throw e;
+    protected long getConfigLong(String name, long defaultValue){
+        Object value = config.get(name);
+        if (value instanceof Number){
+            return ((Number)value).longValue();
         }
+        return defaultValue;
     }
     
     /**
-     * Gets the params from a request to generate a key
+     * Returns a decimal value from the configuration
      * 
-     * @param uri URI : The URI of the request 
-     * @return Map<String,String> : Parameter name => Parameter value
-     * @throws Exception 
+     * @param name String : The name of the configuration entry
+     * @param defaultValue double : The value used when the entry is not set
+     * @return double
      */
-    private Map<String,String> getKeygenParamsFromUri(URI uri) throws Exception{
-        try {
-            Map<String,String> params = new HashMap();
-            String uriString = uri.getPath();
-            String[] uriParts = uriString.split("/");
-            params.put("action", uriParts[2]);
-            params.put("keytype", uriParts[3].toUpperCase());
-            return params;
+    protected double getConfigDouble(String name, double defaultValue){
+        Object value = config.get(name);
+        if (value instanceof Number){
+            return ((Number)value).doubleValue();
         }
-        catch (Exception e){
-            throw e;
+        return defaultValue;
+    }
+    
+    /**
+     * Returns a string value from the configuration
+     * 
+     * @param name String : The name of the configuration entry
+     * @param defaultValue String : The value used when the entry is not set
+     * @return String
+     */
+    protected String getConfigString(String name, String defaultValue){
+        Object value = config.get(name);
+        if (value instanceof String){
+            return (String)value;
         }
+        return defaultValue;
     }
     
     /**
-     * Utility function that reads an input stream to a Byte Array
+     * Copies data to a new RandomAccessBucket of the given factory, 
+     * for inserts the node's temp bucket factory that moves large data to disk
      * 
-     * @param input InputStream : The InputStream
-     * @return byte[] 
+     * @param data Bucket : The data
+     * @param bf BucketFactory : Creates the bucket the data is copied to
+     * @return RandomAccessBucket
      * @throws IOException 
      */
-    private byte[] InputStreamToByteArray(InputStream input) throws IOException{
-        byte[] buffer = new byte[8192];
-        int bytesRead;
-        ByteArrayOutputStream output = new ByteArrayOutputStream();
-        while ((bytesRead = input.read(buffer)) != -1)
-        {
-            output.write(buffer, 0, bytesRead);
+    static RandomAccessBucket copyToRandomAccessBucket(Bucket data, BucketFactory bf) throws IOException{
+        RandomAccessBucket bucket = bf.makeBucket(data.size());
+        try {
+            BucketTools.copy(data, bucket);
         }
-        return output.toByteArray();
+        catch (IOException e){
+            bucket.free();
+            throw e;
+        }
+        return bucket;
     }
     
     /**
@@ -417,101 +2460,210 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
      * @param filename String : The file name is appended to the key
      * @param contenttype String : The contet-type of the inserted data
      * @param data Bucket : The actual data to be inserted 
+     * @param owned boolean : If the data is a RandomAccessBucket of the plugin, e.g. a journal or upload file, which the insert frees.
+     * Otherwise, e.g. for the Bucket of a request that fred frees with the request, the data is copied to a temp bucket.
      * @param priority short : The priority of the insert action
      * @param realtime boolean : If the insert action is realtime or not
+     * @param compress boolean : If the node compresses the data
+     * @param profile InsertProfiles.Profile : The insert profile the settings of the insert are taken from
+     * @param chkOnly boolean : If only the CHK is computed and no block is sent to the network
+     * @param dedupKey String : The dedup index key the requestURI is added under on success, or null
+     * @param permit InsertAdmission.Permit : Released when the insert finishes
+     * @param jobId String : The id the insert is registered under in insertJobs before it starts, or null
+     * @param journaled boolean : If the insert is persistent, its journal entry is removed when it finishes
      * @param tc ToadletContext : The Context object
      * @return InsertStatusCallback : Used for getting the outcome of the insert action 
      * @throws MalformedURLException
      * @throws IOException
      * @throws InsertException 
      */
-    private InsertStatusCallback insert(String key, String filename, String contenttype, Bucket data, short priority, boolean realtime, ToadletContext tc) throws MalformedURLException, IOException, InsertException{
+    private InsertStatusCallback insert(String key, String filename, String contenttype, Bucket data, boolean owned, short priority, boolean realtime, boolean compress, InsertProfiles.Profile profile, boolean chkOnly, String dedupKey, InsertAdmission.Permit permit, String jobId, boolean journaled, ToadletContext tc) throws MalformedURLException, IOException, InsertException{
         FreenetURI targetUri = new FreenetURI(key+filename);
         targetUri.setDocName(filename);
-        InsertContext insertContext = client.getInsertContext(true);
-        byte[] databytes = InputStreamToByteArray(data.getInputStream());
-        RandomAccessBucket bucket = new ArrayBucket(databytes);
+        InsertContext insertContext = profile.newContext();
+        insertContext.getCHKOnly = chkOnly;
+        setCompression(insertContext, compress);
+        RandomAccessBucket bucket = owned ? (RandomAccessBucket)data : copyToRandomAccessBucket(data, services.tempBucketFactory);
         bucket.setReadOnly();
         ClientMetadata metadata = new ClientMetadata(contenttype);
         InsertBlock insertBlock = new InsertBlock(bucket, metadata, targetUri);
-        InsertStatusCallback callback = new InsertStatusCallback(tc, bucket, realtime);
-        ClientPutter clientPutter = client.insert(insertBlock, null, false, insertContext, callback, priority);
+        InsertStatusCallback callback = new InsertStatusCallback(tc, bucket, realtime, jobId, journaled);
+        insertContext.eventProducer.addEventListener(callback);
+        callback.setDedupKey(dedupKey);
+        if (jobId != null){
+            insertJobs.put(jobId, callback);
+        }
+        callback.setPermit(permit);
+        callback.onStarted();
+        ClientPutter clientPutter;
+        try {
+            clientPutter = client.insert(insertBlock, null, false, insertContext, callback, priority);
+        }
+        catch (InsertException e){
+            callback.onFailure(e, null);
+            throw e;
+        }
         callback.setClientPutter(clientPutter);
         return callback;
     }
     
+    /**
+     * Inserts the files of an archive as a site manifest
+     * 
+     * @param key String : The InsertURI for inserting the site
+     * @param filename String : The site name is appended to the key
+     * @param defaultName String : The file returned when the site itself is requested
+     * @param archive SiteArchive : The files to be inserted
+     * @param priority short : The priority of the insert action
+     * @param realtime boolean : If the insert action is realtime or not
+     * @param compress boolean : If the node compresses the files
+     * @param profile InsertProfiles.Profile : The insert profile the settings of the insert are taken from
+     * @param permit InsertAdmission.Permit : Released when the insert finishes
+     * @param jobId String : The id the insert is registered under in insertJobs before it starts, or null
+     * @param journaled boolean : If the insert is persistent, its journal entry is removed when it finishes
+     * @param tc ToadletContext : The Context object
+     * @return InsertStatusCallback : Used for getting the outcome of the insert action 
+     * @throws MalformedURLException
+     * @throws InsertException 
+     * @throws TooManyFilesInsertException 
+     */
+    private InsertStatusCallback insertSite(String key, String filename, String defaultName, SiteArchive archive, short priority, boolean realtime, boolean compress, InsertProfiles.Profile profile, InsertAdmission.Permit permit, String jobId, boolean journaled, ToadletContext tc) throws MalformedURLException, InsertException, TooManyFilesInsertException{
+        FreenetURI targetUri = new FreenetURI(key+filename);
+        InsertContext insertContext = profile.newContext();
+        setCompression(insertContext, compress);
+        InsertStatusCallback callback = new InsertStatusCallback(tc, archive.getBuckets(), realtime, jobId, journaled);
+        insertContext.eventProducer.addEventListener(callback);
+        DefaultManifestPutter putter;
+        try {
+            putter = new DefaultManifestPutter(callback, archive.getElements(), priority, targetUri, 
+                    defaultName, insertContext, false, null, services.clientContext);
+        }
+        catch (TooManyFilesInsertException e){
+            archive.free();
+            throw e;
+        }
+        if (jobId != null){
+            insertJobs.put(jobId, callback);
+        }
+        callback.setClientPutter(putter);
+        callback.setPermit(permit);
+        callback.onStarted();
+        try {
+            services.clientContext.start(putter);
+        }
+        catch (InsertException e){
+            callback.onFailure(e, null);
+            throw e;
+        }
+        return callback;
+    }
+    
     /**
      * Generate an SSK pair for a given filename
      * 
      * @param filename String : The filename
-     * @return InsertableClientSSK : The generated key
+     * @return FreenetURI[] : The insertURI and requestURI of the generated key
      */
-    private InsertableClientSSK keygenSSK(String filename){
+    private FreenetURI[] keygenSSK(String filename){
         return keygenSSK(filename, -1);
     }
     
     /**
      * Generate an SSK pair for a given filename and a given version
+     * The key is taken from the key pool and the filename is set as its document name
      * 
      * @param filename String : The filename
      * @param version int : The version
-     * @return InsertableClientSSK : The generated key 
+     * @return FreenetURI[] : The insertURI and requestURI of the generated key
      */
-    private InsertableClientSSK keygenSSK(String filename, int version){
-        final RandomSource r = node.random;
+    private FreenetURI[] keygenSSK(String filename, int version){
         if (version > -1){
             filename+="-"+version;
         }
-        InsertableClientSSK key = InsertableClientSSK.createRandom(r, filename);
-        return key;
+        InsertableClientSSK key = keyPool.take();
+        return new FreenetURI[]{key.getInsertURI().setDocName(filename), key.getURI().setDocName(filename)};
     }
     
-    private void handleRegName(URI uri, HTTPRequest httpr, ToadletContext tc) throws PluginNotFoundException, IOException, ToadletContextClosedException, InterruptedException {
-        JSONParser parser = new JSONParser();
+    private void handleRegName(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws PluginNotFoundException, IOException, ToadletContextClosedException, InterruptedException {
         try {
-            JSONObject content = (JSONObject)parser.parse(new InputStreamReader(httpr.getRawData().getInputStream(), "UTF-8"));
-            FCPPluginMessage message = regName((String)content.get("name"), (String)content.get("requestKey"));
+            /*Read only the members needed, skipping any others*/
+            String name = null;
+            String requestKey = null;
+            InputStream in = httpr.getRawData().getInputStream();
+            try {
+                JsonReader reader = new JsonReader(in);
+                reader.beginObject();
+                while (reader.hasNext()){
+                    String member = reader.nextName();
+                    if (member.equals("name")){
+                        name = reader.nextString();
+                    }
+                    else if (member.equals("requestKey")){
+                        requestKey = reader.nextString();
+                    }
+                    else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (reader.peek() != JsonReader.END_DOCUMENT){
+                    throw new JsonReader.SyntaxException("Unexpected content after the JSON object");
+                }
+            }
+            finally {
+                in.close();
+            }
+            FCPPluginMessage message;
+            try {
+                message = regName(name, requestKey);
+            }
+            finally {
+                /*The name may have been registered even if the reply did not arrive in time*/
+                if (name != null){
+                    resolverCache.invalidate(name.toLowerCase());
+                }
+            }
             if (message.success){
                 JSONObject response = new JSONObject();
                 response.put("resolveURI", message.params.get("resolveURI"));
-                writeReply(tc, 200, "application/json", "OK", response.toJSONString());
+                writeJsonReply(tc, 200, "OK", response);
             }
             else {
                 writeReply(tc, 500, "text/plain", "Error", "Error: "+message.errorCode+" "+message.errorMessage);
             }
             
-        } catch (ParseException ex) {
+        } catch (JsonReader.SyntaxException ex) {
             writeReply(tc, 400, "text/plain", "Bad Request", "JSON content decoding error "+ex.toString());
+        } catch (TimeoutException ex) {
+            writeReply(tc, 504, "text/plain", "Gateway Timeout", ex.getMessage());
         }
     }
     
-    private FCPPluginMessage regName(String name, String requestKey) throws PluginNotFoundException, IOException, InterruptedException{
-        FCPMessageClientCallback callback = new FCPMessageClientCallback();
-        FCPPluginConnection connection = pr.connectToOtherPlugin(indynetPluginName, callback);
+    private FCPPluginMessage regName(String name, String requestKey) throws PluginNotFoundException, IOException, InterruptedException, TimeoutException{
         SimpleFieldSet params = new SimpleFieldSet(false);
         params.putSingle("action", "resolver.register");
         params.putSingle("name", name);
         params.putSingle("requestKey", requestKey);
-        FCPPluginMessage message = FCPPluginMessage.construct(params, null);
-        connection.send(message);
-        return callback.getReturnedMessage();
+        return indynetConnection.call(params, getConfigLong("regnameTimeout", 30000));
     }
     
-    public void handleResname(URI uri, HTTPRequest httpr, ToadletContext tc) throws Exception{
+    public void handleResname(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
         try {
-            Map<String,String> params = getResnameParamsFromUri(uri);
-            String name = params.get("name");
+            String name = match.get("name").toLowerCase();
             try {
-                FCPPluginMessage message = resName(name);            
+                FCPPluginMessage message = resolverCache.resolve(name);
                 /*Create the json object with the URI pair to return*/
                 if (message.success){
                     /*Send the reply*/
-                    writeReply(tc, 200, "application/json", "", message.params.get("json"));
+                    writeJsonTextReply(tc, 200, "", message.params.get("json"));
                 }
                 else {
                     writeReply(tc, 500, "text/plain", "Error", "Error: "+message.errorCode+" "+message.errorMessage);
                 }
             }
+            catch (TimeoutException e){
+                writeReply(tc, 504, "text/plain", "Gateway Timeout", e.getMessage());
+            }
             catch (Exception e){
                 writeReply(tc, 500, "text/plain", "Server Error", e.toString());
             }
@@ -521,36 +2673,35 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         }        
     }
     
-    private FCPPluginMessage resName(String name) throws PluginNotFoundException, IOException, InterruptedException{
-        FCPMessageClientCallback callback = new FCPMessageClientCallback();
-        FCPPluginConnection connection = pr.connectToOtherPlugin(indynetPluginName, callback);
+    private FCPPluginMessage resName(String name) throws PluginNotFoundException, IOException, InterruptedException, TimeoutException{
         SimpleFieldSet params = new SimpleFieldSet(false);
         params.putSingle("action", "resolver.resolve");
         params.putSingle("name", name);
-        FCPPluginMessage message = FCPPluginMessage.construct(params, null);
-        connection.send(message);
-        return callback.getReturnedMessage();
+        return indynetConnection.call(params, getConfigLong("resnameTimeout", 10000));
     }
     
-    public void handleGetWSFreenetStatus(URI uri, HTTPRequest httpr, ToadletContext tc) throws Exception{
+    public void handleGetWSFreenetStatus(RouteTable.Match match, HTTPRequest httpr, ToadletContext tc) throws Exception{
         try {
             try {
                 FCPPluginMessage message = getWSfreenetStatus();
                 /*Create the json object with the URI pair to return*/
                 if (message.success){
                     /*Send the reply*/
-                    JSONObject reply = new JSONObject();
+                    JsonWriter writer = JsonWriter.forThread(acceptsCbor(tc)).beginObject();
                     Iterator<String> keyIterator = message.params.keyIterator();
                     while (keyIterator.hasNext()){
                         String key = keyIterator.next();
-                        reply.put(key, message.params.getString(key));
+                        writer.name(key).value(message.params.getString(key));
                     }
-                    writeReply(tc, 200, "application/json", "", reply.toJSONString());
+                    sendJsonReply(tc, 200, "", writer.endObject(), CACHE_NO_STORE);
                 }
                 else {
                     writeReply(tc, 500, "text/plain", "Error", "Error: "+message.errorCode+" "+message.errorMessage);
                 }
             }
+            catch (TimeoutException e){
+                writeReply(tc, 504, "text/plain", "Gateway Timeout", e.getMessage());
+            }
             catch (Exception e){
                 writeReply(tc, 500, "text/plain", "Server Error", e.toString());
             }
@@ -560,42 +2711,63 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         }        
     }
     
-    private FCPPluginMessage getWSfreenetStatus() throws PluginNotFoundException, IOException, InterruptedException{
-        FCPMessageClientCallback callback = new FCPMessageClientCallback();
-        FCPPluginConnection connection = pr.connectToOtherPlugin(wsfreentPluginName, callback);
+    private FCPPluginMessage getWSfreenetStatus() throws PluginNotFoundException, IOException, InterruptedException, TimeoutException{
         SimpleFieldSet params = new SimpleFieldSet(false);
         params.putSingle("action", "getstatus");   
-        FCPPluginMessage message = FCPPluginMessage.construct(params, null);
-        connection.send(message);
-        return callback.getReturnedMessage();
+        return wsfreenetConnection.call(params, getConfigLong("wsfreenetStatusTimeout", 5000));
     }
     
-    private Map<String,String> getResnameParamsFromUri(URI uri) throws Exception, NullPointerException{
-        Map<String,String> params = new HashMap();
-        String uriString = uri.getPath();
-        String[] uriParts = uriString.split("/");
-        params.put("action", uriParts[2]);
-        params.put("name", uriParts[3].toLowerCase());
-        return params;
+    /**
+     * InsertOutcome is the outcome of inserting the data of a request
+     */
+    private static class InsertOutcome {
+        public static final int REFUSED = 0; //A reply refusing the insert was sent, e.g. for a bad parameter or no room
+        public static final int DEDUPLICATED = 1; //The key of an earlier insert of the same data was sent
+        public static final int STARTED = 2;
+        static final InsertOutcome REFUSED_OUTCOME = new InsertOutcome(REFUSED, null);
+        static final InsertOutcome DEDUPLICATED_OUTCOME = new InsertOutcome(DEDUPLICATED, null);
+        public final int result;
+        public final InsertStatusCallback callback; //The callback of the started insert, null otherwise
+
+        InsertOutcome(int result, InsertStatusCallback callback){
+            this.result = result;
+            this.callback = callback;
+        }
     }
-    
+
     /**
      * InsertStatusCallback is an implementation of ClientPutCallback. 
      * It gets notified when the insert proccess is finished either with success or with failure
      */
-    private class InsertStatusCallback implements ClientPutCallback, RequestClient {
+    private class InsertStatusCallback implements ClientPutCallback, RequestClient, ClientEventListener {
         public static final int STATUS_SUCCESS = 0;
         public static final int STATUS_FAILURE = 1;
         public static final int STATUS_CANCELLED = 2;
+        public static final int STATUS_RUNNING = 3;
         final Lock lock = new ReentrantLock();
-        final Condition finished = lock.newCondition();
+        final Condition changed = lock.newCondition(); //Signalled when the URI is generated and when the insert finishes
         private final ToadletContext tc;
-        private final RandomAccessBucket bucket;
-        private ClientPutter clientPutter;
-        private int status;
+        private final List<? extends Bucket> buckets; //The Buckets freed when the insert finishes
+        private BaseClientPutter clientPutter;
+        private int status = STATUS_RUNNING;
         private InsertException ie;
+        private boolean timedOut = false; //If the insert was cancelled at its deadline
+        private boolean suspended = false; //If the insert was stopped by a shutdown and kept in the journal
+        private final boolean journaled; //If the insert is persistent and has a journal entry
+        private String dedupKey; //The dedup index key of a CHK insert
+        private String uskEditionKey; //The USK insert key and docname of a USK insert
+        private long uskEdition; //The edition of a USK insert
+        private boolean uskEditionAssigned; //If the edition was assigned by the plugin rather than chosen by the client
+        private volatile Runnable deadlineJob; //Cancels the insert at its deadline
+        private final String jobId; //The id of the job, null if the insert does not run as a job
         private final boolean realtime;
         private FreenetURI insertedURI;
+        private boolean fetchable = false;
+        private BlockingQueue<JSONObject> events; //The progress events of a streamed insert
+        private long lastProgress = 0; //System.nanoTime() when the last progress event was queued
+        private boolean lastFinalized = false; //If the total of blocks was final at the last progress event
+        private long startTime; //System.nanoTime() when the insert was started
+        private InsertAdmission.Permit permit; //Released when the insert finishes
         
         /**
          * Constructor
@@ -603,38 +2775,284 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
          * @param tc ToadletContext : The Context object
          * @param bucket RandomAccessBucket : The Bucket to be inserted 
          * @param realtime boolean : Realtime insert or not
+         * @param jobId String : The id of the job, null if the insert does not run as a job
+         * @param journaled boolean : If the insert is persistent and has a journal entry under jobId
+         */
+        public InsertStatusCallback(ToadletContext tc, RandomAccessBucket bucket, boolean realtime, String jobId, boolean journaled){
+            this(tc, Collections.singletonList(bucket), realtime, jobId, journaled);
+        }
+        
+        /**
+         * Constructor
+         * 
+         * @param tc ToadletContext : The Context object
+         * @param buckets List<? extends Bucket> : The Buckets to be inserted 
+         * @param realtime boolean : Realtime insert or not
+         * @param jobId String : The id of the job, null if the insert does not run as a job
+         * @param journaled boolean : If the insert is persistent and has a journal entry under jobId
          */
-        public InsertStatusCallback(ToadletContext tc, RandomAccessBucket bucket, boolean realtime){
+        public InsertStatusCallback(ToadletContext tc, List<? extends Bucket> buckets, boolean realtime, String jobId, boolean journaled){
             this.tc = tc;
-            this.bucket = bucket;
+            this.buckets = buckets;
             this.realtime = realtime;
+            this.jobId = jobId;
+            this.journaled = journaled;
         }
         
         /**
          * Setter for clientPutter
+         * The job is registered before the insert starts, 
+         * so a ClientPutter set after the job was cancelled is cancelled too
          * 
-         * @param clientPutter ClientPutter : The ClientPutter object
+         * @param clientPutter BaseClientPutter : The ClientPutter object
          */
-        public void setClientPutter(ClientPutter clientPutter) {
+        public void setClientPutter(BaseClientPutter clientPutter) {
+            lock.lock();
+            try {
                 this.clientPutter = clientPutter;
+                if (status != STATUS_CANCELLED){
+                    return;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            clientPutter.cancel(services.clientContext);
+        }
+        
+        /**
+         * Setter for permit
+         * 
+         * @param permit InsertAdmission.Permit : The admission permit of the insert
+         */
+        public void setPermit(InsertAdmission.Permit permit) {
+                this.permit = permit;
+        }
+        
+        /**
+         * Getter for jobId
+         * 
+         * @return String : The id of the job or null if the insert does not run as a job
+         */
+        public String getJobId() {
+                return jobId;
+        }
+        
+        /**
+         * Setter for dedupKey
+         * 
+         * @param dedupKey String : The dedup index key the requestURI is added under on success, or null
+         */
+        public void setDedupKey(String dedupKey) {
+                this.dedupKey = dedupKey;
+        }
+        
+        /**
+         * Sets the edition of a USK insert, which is passed to the USK editions when the insert finishes
+         * 
+         * @param key String : The USK insert key and docname
+         * @param edition long : The edition
+         * @param assigned boolean : If the edition was assigned by the plugin rather than chosen by the client
+         */
+        public void setUSKEdition(String key, long edition, boolean assigned) {
+            lock.lock();
+            try {
+                uskEditionKey = key;
+                uskEdition = edition;
+                uskEditionAssigned = assigned;
+                if (status == STATUS_RUNNING){
+                    return;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            finishUSKEdition();
+        }
+        
+        /**
+         * Gives back an assigned edition if the insert did not succeed
+         * or records the inserted edition if it succeeded.
+         * The inserted edition is taken from the inserted URI when it is known, 
+         * as fred moves a USK insert past editions it finds already taken.
+         */
+        private void finishUSKEdition(){
+            String key;
+            lock.lock();
+            try {
+                key = uskEditionKey;
+                uskEditionKey = null;
+            }
+            finally {
+                lock.unlock();
+            }
+            if (key == null || suspended){
+                return;
+            }
+            if (status != STATUS_SUCCESS){
+                if (uskEditionAssigned){
+                    uskEditions.rollback(key, uskEdition);
+                }
+                return;
+            }
+            long edition = uskEdition;
+            if (insertedURI != null && insertedURI.isUSK()){
+                edition = Math.max(edition, insertedURI.getSuggestedEdition());
+            }
+            uskEditions.observe(key, edition);
+        }
+        
+        /**
+         * Returns true if the insert is persistent
+         * 
+         * @return boolean
+         */
+        public boolean isJournaled() {
+                return journaled;
+        }
+        
+        /**
+         * Sets the deadline of the insert.
+         * If the insert is still running at the deadline it is cancelled.
+         * 
+         * @param timeout long : Milliseconds from now, 0 for no deadline
+         */
+        public void setDeadline(long timeout){
+            if (timeout <= 0){
+                return;
+            }
+            deadlineJob = new Runnable() {
+                @Override
+                public void run() {
+                    cancel(true, false);
+                }
+            };
+            services.ticker.queueTimedJob(deadlineJob, timeout);
         }
         
         /**
          * Method to cancel the insert
          * 
          * When called the onging insert is cancelled and rhe bucket is destroyed 
+         * 
+         * @return boolean : false if the insert had already finished
+         */
+        public boolean cancel() {
+            return cancel(false, false);
+        }
+        
+        /**
+         * Stops a persistent insert keeping its journal entry,
+         * so it is resumed when the plugin starts again
+         * 
+         * @return boolean : false if the insert had already finished
+         */
+        public boolean suspend() {
+            return cancel(false, true);
+        }
+        
+        /**
+         * Cancels the insert
+         * The insert is marked as cancelled before the ClientPutter is cancelled, 
+         * so the onFailure fred calls back from ClientPutter.cancel is ignored
+         * 
+         * @param timeout boolean : If the insert is cancelled because it reached its deadline
+         * @param suspend boolean : If the journal entry of the insert is kept
+         * @return boolean : false if the insert had already finished
          */
-        public void cancel() {
+        private boolean cancel(boolean timeout, boolean suspend) {
+            BaseClientPutter putter;
             lock.lock();
             try {
-                clientPutter.cancel(node.clientCore.clientContext);
-                bucket.free();
+                if (status != STATUS_RUNNING){
+                    return false;
+                }
+                timedOut = timeout;
+                suspended = suspend;
                 status = STATUS_CANCELLED;
-                finished.signalAll();
+                putter = clientPutter;
+                emit(finalEvent());
+                changed.signalAll();
             }
             finally{
                 lock.unlock();
             }
+            if (putter != null){
+                putter.cancel(services.clientContext);
+            }
+            freeBuckets();
+            onFinished();
+            return true;
+        }
+        
+        /**
+         * Returns true if a Bucket is inserted by this insert and is freed when it finishes
+         * 
+         * @param bucket Bucket : The Bucket
+         * @return boolean
+         */
+        public boolean holds(Bucket bucket){
+            return buckets.contains(bucket);
+        }
+        
+        /**
+         * Frees the inserted Buckets
+         */
+        private void freeBuckets(){
+            for (Bucket bucket : buckets){
+                bucket.free();
+            }
+        }
+        
+        /**
+         * Records the start of the insert in the metrics
+         */
+        public void onStarted(){
+            startTime = System.nanoTime();
+            long size = 0;
+            for (Bucket bucket : buckets){
+                size += bucket.size();
+            }
+            metrics.increment("restfreenet_uploaded_bytes_total", "", size);
+            metrics.gaugeAdd("restfreenet_inserts_in_flight", "", 1);
+        }
+        
+        /**
+         * Releases the admission permit, records the outcome of the insert in the metrics and
+         * schedules the removal of a finished asynchronous job 
+         * after the configured retention period
+         */
+        private void onFinished(){
+            if (permit != null){
+                permit.release();
+            }
+            Runnable job = deadlineJob;
+            if (job != null){
+                services.ticker.removeQueuedJob(job);
+            }
+            String outcome = status == STATUS_SUCCESS ? "success" : status == STATUS_FAILURE ? "failure" : timedOut ? "timeout" : "cancelled";
+            metrics.gaugeAdd("restfreenet_inserts_in_flight", "", -1);
+            metrics.observe("restfreenet_insert_duration_seconds", Metrics.label("outcome", outcome), System.nanoTime() - startTime);
+            if (status == STATUS_FAILURE){
+                metrics.increment("restfreenet_insert_failures_total", Metrics.label("reason", String.valueOf(ie.getMode())), 1);
+            }
+            if (journaled && !suspended){
+                insertJournal.remove(jobId);
+            }
+            if (status == STATUS_SUCCESS && dedupKey != null && insertedURI != null){
+                insertDedup.put(dedupKey, insertedURI.toString());
+            }
+            finishUSKEdition();
+            if (jobId == null){
+                return;
+            }
+            final String id = jobId;
+            services.ticker.queueTimedJob(new Runnable() {
+                @Override
+                public void run() {
+                    insertJobs.remove(id);
+                }
+            }, getConfigLong("insertJobRetention", 3600000));
         }
              
         /**
@@ -648,37 +3066,96 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
 
         /**
          * Called when the URI of the inserted data is generated 
-         * Currently it is a dummy function doing nothing 
+         * The URI is kept for the status of the insert
+         * and is sent to the clients waiting for it
          * 
          * @param furi FreenetURI : The inserted URI
          * @param bcp BaseClientPutter : The ClientPutter object
          */
         @Override
         public void onGeneratedURI(FreenetURI furi, BaseClientPutter bcp) {
-            //throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            lock.lock();
+            try {
+                if (status != STATUS_RUNNING){
+                    return;
+                }
+                insertedURI = furi;
+                emit(uriEvent());
+                changed.signalAll();
+            }
+            finally {
+                lock.unlock();
+            }
         }
 
         /**
-         * Called when the Metadata of the inserted data is generated 
-         * Currently it is a dummy function doing nothing 
+         * Called with the top level metadata of an insert that was asked to return it instead of inserting it.
+         * The inserts of the plugin always insert their metadata, so it is intentionally empty.
          * 
-         * @param bucket Bucket : The Bucket to be inserted
+         * @param bucket Bucket : The metadata
          * @param bcp BaseClientPutter : The ClientPutter object
          */
         @Override
         public void onGeneratedMetadata(Bucket bucket, BaseClientPutter bcp) {
-            //throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
         }
 
         /**
-         * Called when the Metadata of the inserted data is fetchable (?? Not sure)
-         * Currently it is a dummy function doing nothing 
+         * Called when enough of the inserted data is in the network to be fetched 
          * 
          * @param bcp BaseClientPutter : The ClientPutter object
          */
         @Override
         public void onFetchable(BaseClientPutter bcp) {
-            //throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
+            lock.lock();
+            try {
+                if (status != STATUS_RUNNING || fetchable){
+                    return;
+                }
+                fetchable = true;
+                emit(event("fetchable"));
+            }
+            finally {
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Called with the events of the insert 
+         * Splitfile progress is sent to a streaming client, at most every 250 ms 
+         * unless the total of blocks has just become final
+         * 
+         * @param ce ClientEvent : The event
+         * @param context ClientContext : The Context object
+         */
+        @Override
+        public void receive(ClientEvent ce, ClientContext context) {
+            if (!(ce instanceof SplitfileProgressEvent)){
+                return;
+            }
+            SplitfileProgressEvent progress = (SplitfileProgressEvent)ce;
+            lock.lock();
+            try {
+                long now = System.nanoTime();
+                if (events == null || status != STATUS_RUNNING){
+                    return;
+                }
+                if (progress.finalizedTotal == lastFinalized && now - lastProgress < TimeUnit.MILLISECONDS.toNanos(250)){
+                    return;
+                }
+                lastProgress = now;
+                lastFinalized = progress.finalizedTotal;
+                JSONObject event = event("progress");
+                event.put("totalBlocks", progress.totalBlocks);
+                event.put("minSuccessfulBlocks", progress.minSuccessfulBlocks);
+                event.put("succeededBlocks", progress.succeedBlocks);
+                event.put("failedBlocks", progress.failedBlocks);
+                event.put("fatallyFailedBlocks", progress.fatallyFailedBlocks);
+                event.put("finalizedTotal", progress.finalizedTotal);
+                emit(event);
+            }
+            finally {
+                lock.unlock();
+            }
         }
 
         /**
@@ -690,14 +3167,19 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         public void onSuccess(BaseClientPutter bcp) {
             lock.lock();
             try{
+                if (status != STATUS_RUNNING){
+                    return;
+                }
                 status = STATUS_SUCCESS;
                 insertedURI = bcp.getURI();
-                bucket.free();
-                finished.signalAll();
+                freeBuckets();
+                emit(finalEvent());
+                changed.signalAll();
             }
             finally{
                 lock.unlock();
             }
+            onFinished();
         }
 
         /**
@@ -710,26 +3192,31 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         public void onFailure(InsertException ie, BaseClientPutter bcp) {
             lock.lock();
             try{
+                if (status != STATUS_RUNNING){
+                    return;
+                }
                 status = STATUS_FAILURE;
-                bucket.free();
+                freeBuckets();
                 this.ie = ie;
-                finished.signalAll();
+                emit(finalEvent());
+                changed.signalAll();
             }
             finally{
                 lock.unlock();
             }
+            onFinished();
         }
 
         /**
-         * Called when the insert process is resumed
-         * Currently it is a dummy function doing nothing 
+         * Called when the node resumes a persistent request after a restart.
+         * The inserts of the plugin are not persistent in the node, persistent inserts are resumed 
+         * by the plugin from its journal, so it is intentionally empty.
          * 
-         * @param cc The Context object
+         * @param cc ClientContext : The Context object
          * @throws ResumeFailedException 
          */
         @Override
         public void onResume(ClientContext cc) throws ResumeFailedException {
-            //throw new UnsupportedOperationException("Not supported yet."); //To change body of generated methods, choose Tools | Templates.
         }
 
         /**
@@ -743,7 +3230,8 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         }
 
         /**
-         * This insert process is not persistent
+         * The insert is not persistent for the node, 
+         * persistent inserts are kept in the plugin's own journal and started again by the plugin
          * 
          * @return boolean
          */
@@ -764,13 +3252,16 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         
         /**
          * Returns the status of the insertion
+         * Waits until the insert has finished
          * 
          * @return int
          */
         public int getStatus() throws InterruptedException{
             lock.lock();
             try{
-                finished.await();
+                while (status == STATUS_RUNNING){
+                    changed.await();
+                }
                 return status;
             }
             finally{
@@ -779,47 +3270,182 @@ public class RestToadlet extends Toadlet implements LinkEnabledCallback{
         }
         
         /**
-         * Returns the URI of the inserted data after insert success
+         * Waits until the URI of the inserted data is generated or the insert has finished
          * 
-         * @return FreenetURI
+         * @return int : The status of the insert, STATUS_RUNNING if the URI was generated
+         * @throws InterruptedException 
          */
-        public FreenetURI getInsertedURI() throws InterruptedException{
-            
-            return insertedURI;
-           
+        public int awaitURI() throws InterruptedException{
+            lock.lock();
+            try{
+                while (status == STATUS_RUNNING && insertedURI == null){
+                    changed.await();
+                }
+                return status;
+            }
+            finally{
+                lock.unlock();
+            }
         }
         
-    }
-    
-    private class FCPMessageClientCallback implements ClientSideFCPMessageHandler {
-
-        final Lock lock = new ReentrantLock();
-        final Condition finished = lock.newCondition();
-        FCPPluginMessage message = null;
+        /**
+         * Returns the queue of the progress events of the insert.
+         * The events that already happened are queued first, 
+         * so a client subscribing late does not miss the URI or the outcome.
+         * 
+         * @return BlockingQueue<JSONObject>
+         */
+        public BlockingQueue<JSONObject> subscribe(){
+            lock.lock();
+            try{
+                if (events == null){
+                    events = new LinkedBlockingQueue<JSONObject>();
+                    if (insertedURI != null){
+                        emit(uriEvent());
+                    }
+                    if (fetchable){
+                        emit(event("fetchable"));
+                    }
+                    if (status != STATUS_RUNNING){
+                        emit(finalEvent());
+                    }
+                }
+                return events;
+            }
+            finally{
+                lock.unlock();
+            }
+        }
         
-        @Override
-        public FCPPluginMessage handlePluginFCPMessage(FCPPluginConnection fcppc, FCPPluginMessage fcppm) {
+        /**
+         * Queues an event for a streaming client
+         * Called with the lock held
+         * 
+         * @param event JSONObject : The event
+         */
+        private void emit(JSONObject event){
+            if (events != null){
+                events.add(event);
+            }
+        }
+        
+        private JSONObject event(String name){
+            JSONObject event = new JSONObject();
+            event.put("event", name);
+            return event;
+        }
+        
+        private JSONObject uriEvent(){
+            JSONObject event = event("uri");
+            event.put("requestURI", insertedURI.toString());
+            return event;
+        }
+        
+        /**
+         * Creates the event of the outcome of the insert
+         * Called with the lock held after the insert has finished
+         * 
+         * @return JSONObject
+         */
+        private JSONObject finalEvent(){
+            JSONObject event;
+            if (status == STATUS_SUCCESS){
+                event = event("success");
+                if (insertedURI != null){
+                    event.put("requestURI", insertedURI.toString());
+                }
+            }
+            else if (status == STATUS_FAILURE){
+                event = event("failure");
+                event.put("error", ie.toString());
+            }
+            else {
+                event = event("cancelled");
+                if (timedOut){
+                    event.put("reason", "timeout");
+                }
+                else if (suspended){
+                    event.put("reason", "shutdown");
+                }
+            }
+            event.put("final", true);
+            return event;
+        }
+        
+        /**
+         * Returns true if the inserted data can already be fetched
+         * 
+         * @return boolean
+         */
+        public boolean isFetchable(){
             lock.lock();
-            try {
-                message = fcppm;
-                finished.signalAll();
-                return FCPPluginMessage.construct();
+            try{
+                return fetchable;
             }
-            finally {
+            finally{
                 lock.unlock();
             }
         }
         
-        public FCPPluginMessage getReturnedMessage() throws InterruptedException{
+        /**
+         * Returns true if the insert was stopped by a shutdown and kept in the journal
+         * 
+         * @return boolean
+         */
+        public boolean isSuspended(){
             lock.lock();
-            try {
-                finished.await();
-                return message;
+            try{
+                return suspended;
             }
-            finally {
+            finally{
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns true if the insert was cancelled because it reached its deadline
+         * 
+         * @return boolean
+         */
+        public boolean isTimedOut(){
+            lock.lock();
+            try{
+                return timedOut;
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the status of the insertion without waiting
+         * 
+         * @return int : STATUS_RUNNING if the insert has not finished yet
+         */
+        public int getCurrentStatus(){
+            lock.lock();
+            try{
+                return status;
+            }
+            finally{
+                lock.unlock();
+            }
+        }
+        
+        /**
+         * Returns the URI of the inserted data 
+         * 
+         * @return FreenetURI : The URI or null if it has not been generated yet
+         */
+        public FreenetURI getInsertedURI(){
+            lock.lock();
+            try{
+                return insertedURI;
+            }
+            finally{
                 lock.unlock();
             }
         }
-                
+        
     }
 }
@@ -0,0 +1,252 @@
+package plugins.RestFreenet;
+
+import freenet.clients.http.ToadletContext;
+import freenet.support.api.HTTPRequest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The table of the routes handled under the base path.
+ * A route is a method, an action and a list of named path parameters, e.g.
+ * "insert/{key}/{filename*}" where the last parameter may take the rest of the path.
+ * Routes are compiled once when added and requests are matched by scanning the path
+ * without splitting it.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class RouteTable {
+    public static final int FOUND = 0;
+    public static final int NOT_FOUND = 1;
+    public static final int METHOD_NOT_ALLOWED = 2;
+
+    private final String basePath;
+    private final Map<String, List<Route>> routes; //Action => routes of the action
+
+    /**
+     * Handler handles the requests matching a route
+     */
+    public interface Handler {
+        /**
+         * Handles a request
+         *
+         * @param match Match : The matched route with the path parameters
+         * @param httpr HTTPRequest : The request object
+         * @param tc ToadletContext : The Context object
+         * @throws Exception
+         */
+        void handle(Match match, HTTPRequest httpr, ToadletContext tc) throws Exception;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param basePath String : The path under which the routes are matched, e.g. /rest/
+     */
+    public RouteTable(String basePath){
+        this.basePath = basePath;
+        this.routes = new HashMap<String, List<Route>>();
+    }
+
+    /**
+     * Adds a route
+     *
+     * @param method String : The HTTP method
+     * @param pattern String : The action followed by the path parameters, e.g. keygen/{keytype}
+     * @param handler Handler : The handler of the route
+     */
+    public void add(String method, String pattern, Handler handler){
+        String[] parts = pattern.split("/");
+        String action = parts[0].toLowerCase();
+        String[] params = new String[parts.length - 1];
+        boolean tail = false;
+        for (int i=1; i<parts.length; i++){
+            String param = parts[i];
+            if (!param.startsWith("{") || !param.endsWith("}")){
+                throw new IllegalArgumentException("Invalid route pattern "+pattern);
+            }
+            param = param.substring(1, param.length() - 1);
+            if (param.endsWith("*")){
+                if (i != parts.length - 1){
+                    throw new IllegalArgumentException("Invalid route pattern "+pattern);
+                }
+                param = param.substring(0, param.length() - 1);
+                tail = true;
+            }
+            params[i-1] = param;
+        }
+        List<Route> actionRoutes = routes.get(action);
+        if (actionRoutes == null){
+            actionRoutes = new ArrayList<Route>();
+            routes.put(action, actionRoutes);
+        }
+        actionRoutes.add(new Route(method, action, params, tail, handler));
+    }
+
+    /**
+     * Matches a request to a route
+     *
+     * @param method String : The HTTP method
+     * @param path String : The path of the request
+     * @return Match : The match with status FOUND, NOT_FOUND or METHOD_NOT_ALLOWED
+     */
+    public Match match(String method, String path){
+        if (!path.startsWith(basePath)){
+            return new Match(NOT_FOUND, null, null, null);
+        }
+        int start = basePath.length();
+        int end = path.indexOf('/', start);
+        if (end < 0){
+            end = path.length();
+        }
+        List<Route> actionRoutes = routes.get(path.substring(start, end).toLowerCase());
+        if (actionRoutes == null){
+            return new Match(NOT_FOUND, null, null, null);
+        }
+        StringBuilder allow = new StringBuilder();
+        for (Route route : actionRoutes){
+            if (!route.method.equals(method)){
+                if (allow.length() > 0){
+                    allow.append(", ");
+                }
+                allow.append(route.method);
+                continue;
+            }
+            String[] values = route.extract(path, end);
+            if (values == null){
+                return new Match(NOT_FOUND, null, null, null);
+            }
+            return new Match(FOUND, route, values, null);
+        }
+        return new Match(METHOD_NOT_ALLOWED, null, null, allow.toString());
+    }
+
+    /**
+     * Route is a compiled route pattern
+     */
+    private static class Route {
+        final String method;
+        final String action;
+        final String[] params;
+        final boolean tail; //If the last parameter takes the rest of the path
+        final Handler handler;
+
+        Route(String method, String action, String[] params, boolean tail, Handler handler){
+            this.method = method;
+            this.action = action;
+            this.params = params;
+            this.tail = tail;
+            this.handler = handler;
+        }
+
+        /**
+         * Extracts the parameter values from the path
+         *
+         * @param path String : The path of the request
+         * @param offset int : The position after the action
+         * @return String[] : The values, or null if the path does not match
+         */
+        String[] extract(String path, int offset){
+            String[] values = new String[params.length];
+            int pos = offset;
+            for (int i=0; i<params.length; i++){
+                boolean last = i == params.length - 1;
+                if (pos >= path.length()){
+                    if (last && tail){
+                        values[i] = "";
+                        return values;
+                    }
+                    return null;
+                }
+                pos++; //Skip the slash
+                if (last && tail){
+                    values[i] = path.substring(pos);
+                    return values;
+                }
+                int end = path.indexOf('/', pos);
+                if (end < 0){
+                    end = path.length();
+                }
+                if (end == pos){
+                    return null;
+                }
+                values[i] = path.substring(pos, end);
+                pos = end;
+            }
+            /*Only a trailing slash may follow the last parameter*/
+            if (pos < path.length() - 1){
+                return null;
+            }
+            return values;
+        }
+    }
+
+    /**
+     * Match is the result of matching a request to the routes
+     */
+    public static class Match {
+        private final int status;
+        private final Route route;
+        private final String[] values;
+        private final String allow;
+
+        private Match(int status, Route route, String[] values, String allow){
+            this.status = status;
+            this.route = route;
+            this.values = values;
+            this.allow = allow;
+        }
+
+        /**
+         * Returns the match status
+         *
+         * @return int : FOUND, NOT_FOUND or METHOD_NOT_ALLOWED
+         */
+        public int getStatus(){
+            return status;
+        }
+
+        /**
+         * Returns the methods allowed for the action when the status is METHOD_NOT_ALLOWED
+         *
+         * @return String
+         */
+        public String getAllow(){
+            return allow;
+        }
+
+        /**
+         * Returns the action of the matched route
+         *
+         * @return String : The action or null if no route was found
+         */
+        public String getAction(){
+            return route == null ? null : route.action;
+        }
+
+        /**
+         * Returns the handler of the matched route
+         *
+         * @return Handler
+         */
+        public Handler getHandler(){
+            return route.handler;
+        }
+
+        /**
+         * Returns the value of a path parameter
+         *
+         * @param name String : The parameter name
+         * @return String : The value or null if the route has no such parameter
+         */
+        public String get(String name){
+            for (int i=0; i<route.params.length; i++){
+                if (route.params[i].equals(name)){
+                    return values[i];
+                }
+            }
+            return null;
+        }
+    }
+}
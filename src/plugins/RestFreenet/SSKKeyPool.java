@@ -0,0 +1,94 @@
+package plugins.RestFreenet;
+
+import freenet.crypt.RandomSource;
+import freenet.keys.InsertableClientSSK;
+import freenet.support.Executor;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of pre-generated SSK key pairs.
+ * The keys are generated without a document name by refill jobs run on the node's executor,
+ * so key generation requests do not have to wait for the crypto.
+ * When the pool is empty keys are generated on the calling thread.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class SSKKeyPool {
+    private final RandomSource random;
+    private final Executor executor;
+    private final BlockingQueue<InsertableClientSSK> keys;
+    private final int workers; //The maximum number of concurrent refill jobs
+    private final AtomicInteger activeWorkers;
+    private volatile boolean running;
+
+    /**
+     * Constructor
+     *
+     * @param random RandomSource : The random source of the node
+     * @param executor Executor : Runs the refill jobs
+     * @param capacity int : The number of keys kept ready, 0 disables the pool
+     * @param workers int : The maximum number of concurrent refill jobs
+     */
+    public SSKKeyPool(RandomSource random, Executor executor, int capacity, int workers){
+        this.random = random;
+        this.executor = executor;
+        this.keys = new ArrayBlockingQueue<InsertableClientSSK>(Math.max(1, capacity));
+        this.workers = capacity > 0 ? Math.max(1, workers) : 0;
+        this.activeWorkers = new AtomicInteger();
+        this.running = true;
+        refill();
+    }
+
+    /**
+     * Returns a key pair with no document name
+     *
+     * @return InsertableClientSSK
+     */
+    public InsertableClientSSK take(){
+        InsertableClientSSK key = keys.poll();
+        if (keys.remainingCapacity() > keys.size()){
+            refill();
+        }
+        if (key == null){
+            key = InsertableClientSSK.createRandom(random, "");
+        }
+        return key;
+    }
+
+    /**
+     * Stops the refill jobs and drops the pooled keys
+     */
+    public void stop(){
+        running = false;
+        keys.clear();
+    }
+
+    /**
+     * Starts refill jobs up to the maximum number of workers
+     */
+    private void refill(){
+        while (running){
+            int active = activeWorkers.get();
+            if (active >= workers){
+                return;
+            }
+            if (activeWorkers.compareAndSet(active, active + 1)){
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            while (running && keys.remainingCapacity() > 0){
+                                keys.offer(InsertableClientSSK.createRandom(random, ""));
+                            }
+                        }
+                        finally {
+                            activeWorkers.decrementAndGet();
+                        }
+                    }
+                }, "RestFreenet SSK key pool refill");
+            }
+        }
+    }
+}
@@ -0,0 +1,345 @@
+package plugins.RestFreenet;
+
+import freenet.client.async.ManifestElement;
+import freenet.support.api.Bucket;
+import freenet.support.api.BucketFactory;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Reads the files of a zip or tar archive into the manifest elements of a site insert.
+ * The archive is read as a stream and every file is copied to its own Bucket,
+ * so the files are never held on the heap as a whole.
+ * The extracted files are limited in number and total size, as a small archive may expand to far more data.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class SiteArchive {
+    private static final int TAR_BLOCK_SIZE = 512;
+    private static final int TAR_MAX_LONG_NAME = 65536; //The longest GNU long name read
+
+    private final HashMap<String, Object> elements; //Name => ManifestElement or HashMap of a directory
+    private final List<Bucket> buckets; //The buckets holding the files
+    private final long maxBytes; //The maximum total size of the files
+    private final int maxFiles; //The maximum number of files
+    private long size = 0; //The total size of the files
+
+    /**
+     * TooLargeException is thrown when the files of an archive are over the limits
+     */
+    public static class TooLargeException extends IOException {
+        public TooLargeException(String message){
+            super(message);
+        }
+    }
+
+    private SiteArchive(long maxBytes, int maxFiles){
+        this.elements = new HashMap<String, Object>();
+        this.buckets = new ArrayList<Bucket>();
+        this.maxBytes = maxBytes;
+        this.maxFiles = maxFiles;
+    }
+
+    /**
+     * Returns true if the content type is of a supported archive
+     *
+     * @param contentType String : The content type
+     * @return boolean
+     */
+    public static boolean isSupported(String contentType){
+        return isZip(contentType) || isTar(contentType);
+    }
+
+    /**
+     * Reads an archive
+     *
+     * @param data Bucket : The archive
+     * @param contentType String : The content type of the archive
+     * @param bf BucketFactory : Creates the buckets for the files
+     * @param maxBytes long : The maximum total size of the files
+     * @param maxFiles int : The maximum number of files
+     * @return SiteArchive
+     * @throws TooLargeException if the files are over maxBytes or maxFiles
+     * @throws IOException
+     */
+    public static SiteArchive read(Bucket data, String contentType, BucketFactory bf, long maxBytes, int maxFiles) throws IOException{
+        SiteArchive archive = new SiteArchive(maxBytes, maxFiles);
+        InputStream input = data.getInputStream();
+        try {
+            if (isZip(contentType)){
+                archive.readZip(input, bf);
+            }
+            else if (isTar(contentType)){
+                archive.readTar(input, bf);
+            }
+            else {
+                throw new IOException("Unsupported archive type "+contentType);
+            }
+        }
+        catch (IOException e){
+            archive.free();
+            throw e;
+        }
+        finally {
+            input.close();
+        }
+        return archive;
+    }
+
+    /**
+     * Returns the manifest elements
+     *
+     * @return HashMap<String, Object> : Name => ManifestElement or HashMap of a directory
+     */
+    public HashMap<String, Object> getElements(){
+        return elements;
+    }
+
+    /**
+     * Returns the buckets holding the files
+     *
+     * @return List<Bucket>
+     */
+    public List<Bucket> getBuckets(){
+        return buckets;
+    }
+
+    /**
+     * Returns the total size of the files
+     *
+     * @return long
+     */
+    public long getSize(){
+        return size;
+    }
+
+    /**
+     * Returns true if the archive contains no files
+     *
+     * @return boolean
+     */
+    public boolean isEmpty(){
+        return buckets.isEmpty();
+    }
+
+    /**
+     * Frees the buckets holding the files
+     */
+    public void free(){
+        for (Bucket bucket : buckets){
+            bucket.free();
+        }
+    }
+
+    private static boolean isZip(String contentType){
+        return contentType != null && (contentType.startsWith("application/zip") || contentType.startsWith("application/x-zip"));
+    }
+
+    private static boolean isTar(String contentType){
+        return contentType != null && contentType.startsWith("application/x-tar");
+    }
+
+    private void readZip(InputStream input, BucketFactory bf) throws IOException{
+        ZipInputStream zip = new ZipInputStream(input);
+        ZipEntry entry;
+        while ((entry = zip.getNextEntry()) != null){
+            if (!entry.isDirectory()){
+                addFile(entry.getName(), zip, -1, bf);
+            }
+            zip.closeEntry();
+        }
+    }
+
+    /**
+     * Reads a ustar or GNU tar archive.
+     * Only regular files are added, long names are read from GNU long name entries
+     * of up to TAR_MAX_LONG_NAME bytes.
+     */
+    private void readTar(InputStream input, BucketFactory bf) throws IOException{
+        byte[] header = new byte[TAR_BLOCK_SIZE];
+        String longName = null;
+        while (true){
+            if (!readFully(input, header)){
+                return;
+            }
+            if (isZeroBlock(header)){
+                return;
+            }
+            String name = tarString(header, 0, 100);
+            long size = tarOctal(header, 124, 12);
+            char type = (char)header[156];
+            String prefix = tarString(header, 345, 155);
+            if (!prefix.isEmpty()){
+                name = prefix+"/"+name;
+            }
+            if (longName != null){
+                name = longName;
+                longName = null;
+            }
+            if (type == 'L'){
+                if (size > TAR_MAX_LONG_NAME){
+                    throw new IOException("Tar long name of "+size+" bytes");
+                }
+                byte[] nameBytes = new byte[(int)size];
+                if (!readFully(input, nameBytes)){
+                    throw new IOException("Unexpected end of tar archive");
+                }
+                longName = tarString(nameBytes, 0, nameBytes.length);
+            }
+            else if (type == '0' || type == '\0'){
+                addFile(name, input, size, bf);
+            }
+            else {
+                skip(input, size);
+            }
+            skip(input, (TAR_BLOCK_SIZE - size % TAR_BLOCK_SIZE) % TAR_BLOCK_SIZE);
+        }
+    }
+
+    /**
+     * Copies a file of the archive to a new Bucket and adds it to the elements
+     *
+     * @param name String : The path of the file in the archive
+     * @param input InputStream : The archive positioned at the file data
+     * @param size long : The size of the file or -1 to read until the end of the stream
+     * @param bf BucketFactory : Creates the bucket for the file
+     * @throws TooLargeException if the file is over the limits
+     * @throws IOException
+     */
+    private void addFile(String name, InputStream input, long size, BucketFactory bf) throws IOException{
+        if (buckets.size() >= maxFiles){
+            throw new TooLargeException("The archive has more than "+maxFiles+" files");
+        }
+        String[] parts = name.split("/");
+        HashMap<String, Object> dir = elements;
+        for (int i=0; i<parts.length-1; i++){
+            if (parts[i].isEmpty() || parts[i].equals(".")){
+                continue;
+            }
+            Object child = dir.get(parts[i]);
+            if (!(child instanceof HashMap)){
+                child = new HashMap<String, Object>();
+                dir.put(parts[i], child);
+            }
+            dir = (HashMap<String, Object>)child;
+        }
+        String filename = parts[parts.length-1];
+        Bucket bucket = bf.makeBucket(size);
+        buckets.add(bucket);
+        OutputStream output = bucket.getOutputStream();
+        try {
+            copy(input, output, size);
+        }
+        finally {
+            output.close();
+        }
+        bucket.setReadOnly();
+        dir.put(filename, new ManifestElement(filename, bucket, null, bucket.size()));
+    }
+
+    /**
+     * Copies a file of the archive, counting it in the total size of the files
+     *
+     * @throws TooLargeException if the total size goes over maxBytes
+     */
+    private void copy(InputStream input, OutputStream output, long size) throws IOException{
+        long room = maxBytes - this.size;
+        if (size > room){
+            throw new TooLargeException("The files of the archive are larger than "+maxBytes+" bytes");
+        }
+        byte[] buffer = new byte[32768];
+        long remaining = size < 0 ? Long.MAX_VALUE : size;
+        long copied = 0;
+        while (remaining > 0){
+            int bytesRead = input.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+            if (bytesRead == -1){
+                if (size < 0){
+                    break;
+                }
+                throw new IOException("Unexpected end of archive");
+            }
+            copied += bytesRead;
+            if (copied > room){
+                throw new TooLargeException("The files of the archive are larger than "+maxBytes+" bytes");
+            }
+            output.write(buffer, 0, bytesRead);
+            remaining -= bytesRead;
+        }
+        this.size += copied;
+    }
+
+    private static void skip(InputStream input, long size) throws IOException{
+        while (size > 0){
+            long n = input.skip(size);
+            if (n <= 0){
+                if (input.read() == -1){
+                    throw new IOException("Unexpected end of archive");
+                }
+                n = 1;
+            }
+            size -= n;
+        }
+    }
+
+    private static boolean readFully(InputStream input, byte[] buffer) throws IOException{
+        int offset = 0;
+        while (offset < buffer.length){
+            int bytesRead = input.read(buffer, offset, buffer.length - offset);
+            if (bytesRead == -1){
+                if (offset == 0){
+                    return false;
+                }
+                throw new IOException("Unexpected end of archive");
+            }
+            offset += bytesRead;
+        }
+        return true;
+    }
+
+    private static boolean isZeroBlock(byte[] block){
+        for (byte b : block){
+            if (b != 0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static long tarOctal(byte[] block, int offset, int length) throws IOException{
+        String value = tarString(block, offset, length).trim();
+        if (value.isEmpty()){
+            return 0;
+        }
+        long number;
+        try {
+            number = Long.parseLong(value, 8);
+        }
+        catch (NumberFormatException e){
+            throw new IOException("Invalid tar header");
+        }
+        if (number < 0){
+            throw new IOException("Invalid tar header");
+        }
+        return number;
+    }
+
+    private static String tarString(byte[] block, int offset, int length){
+        int end = offset;
+        while (end < offset + length && block[end] != 0){
+            end++;
+        }
+        try {
+            return new String(block, offset, end - offset, "UTF-8");
+        }
+        catch (UnsupportedEncodingException e){
+            throw new Error(e);
+        }
+    }
+}
@@ -0,0 +1,261 @@
+package plugins.RestFreenet;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Assigns the next edition to inserts of USKs.
+ * The last edition assigned to every USK is kept, so writers do not have to know it or probe for it.
+ * Writers to the same USK are serialized by a lock taken from a fixed set of stripes by the hash of the USK,
+ * so writers to different USKs rarely wait for each other and no lock has to be created per USK.
+ * The latest edition of a USK not seen before is looked up once, without holding its stripe,
+ * and concurrent first writers wait for that lookup instead of probing again.
+ * The stripe is only held to take the next edition.
+ * The editions of a USK are guarded by its stripe, the lock of the object only guards the map of the USKs.
+ * The editions of failed inserts at the end of the assigned editions are given back,
+ * so failures do not leave a gap after the last published edition.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class USKEditions {
+    private final ReentrantLock[] stripes;
+    private final LinkedHashMap<String, Editions> editions; //USK insert key and docname => editions, in access order
+    private final Map<String, FutureTask<Long>> lookups; //USK insert key and docname => lookup of the latest edition in progress
+    private final long lockTimeout; //Time to wait for the lock of a USK in ms
+
+    /**
+     * Editions holds the assigned editions of a USK.
+     * Read and changed only with the stripe of the USK held.
+     */
+    private static class Editions {
+        private long last; //The last assigned edition
+        private final TreeSet<Long> failed = new TreeSet<Long>(); //Failed editions not given back yet, all below last
+
+        private Editions(long last){
+            this.last = last;
+        }
+    }
+
+    /**
+     * Lookup finds the latest published edition of a USK
+     */
+    public interface Lookup {
+        /**
+         * Looks up the latest edition of a USK
+         *
+         * @return long : The latest edition or -1 if none is found
+         * @throws Exception
+         */
+        long latest() throws Exception;
+    }
+
+    /**
+     * Constructor
+     *
+     * @param stripes int : The number of locks writers are spread over
+     * @param maxEntries int : The maximum number of USKs whose last edition is kept
+     * @param lockTimeout long : Time to wait for the lock of a USK in ms
+     */
+    public USKEditions(int stripes, final int maxEntries, long lockTimeout){
+        this.stripes = new ReentrantLock[Math.max(1, stripes)];
+        for (int i=0; i<this.stripes.length; i++){
+            this.stripes[i] = new ReentrantLock();
+        }
+        this.editions = new LinkedHashMap<String, Editions>(16, 0.75f, true){
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Editions> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        this.lookups = new HashMap<String, FutureTask<Long>>();
+        this.lockTimeout = lockTimeout;
+    }
+
+    /**
+     * Assigns the next edition of a USK
+     *
+     * @param key String : The USK insert key and docname
+     * @param lookup Lookup : Finds the latest edition if the USK has not been seen before
+     * @return long : The assigned edition or -1 if the lock of the USK or the lookup of another writer 
+     * did not complete within the lock timeout
+     * @throws Exception
+     */
+    public long next(String key, Lookup lookup) throws Exception{
+        long deadline = System.currentTimeMillis() + lockTimeout;
+        while (true){
+            if (!awaitLookup(key, lookup, deadline)){
+                return -1;
+            }
+            ReentrantLock lock = stripe(key);
+            if (!lock.tryLock(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)){
+                return -1;
+            }
+            try {
+                Editions assigned = get(key);
+                if (assigned != null){
+                    assigned.last++;
+                    return assigned.last;
+                }
+            }
+            finally {
+                lock.unlock();
+            }
+            //Evicted since the lookup, so it is looked up again
+        }
+    }
+
+    /**
+     * Makes sure the editions of a USK are known, looking up the latest edition if it has not been seen before.
+     * Only the first writer runs the lookup, the others wait for it.
+     *
+     * @param key String : The USK insert key and docname
+     * @param lookup Lookup : Finds the latest edition
+     * @param deadline long : When to stop waiting for the lookup of another writer
+     * @return boolean : false if the lookup of another writer did not complete before the deadline
+     * @throws Exception if the lookup failed
+     */
+    private boolean awaitLookup(final String key, final Lookup lookup, long deadline) throws Exception{
+        FutureTask<Long> pending;
+        boolean owner = false;
+        synchronized (this){
+            if (editions.containsKey(key)){
+                return true;
+            }
+            pending = lookups.get(key);
+            if (pending == null){
+                pending = new FutureTask<Long>(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        try {
+                            long latest = lookup.latest();
+                            synchronized (USKEditions.this){
+                                if (!editions.containsKey(key)){
+                                    editions.put(key, new Editions(Math.max(-1, latest)));
+                                }
+                            }
+                            return latest;
+                        }
+                        finally {
+                            synchronized (USKEditions.this){
+                                lookups.remove(key);
+                            }
+                        }
+                    }
+                });
+                lookups.put(key, pending);
+                owner = true;
+            }
+        }
+        if (owner){
+            pending.run();
+        }
+        try {
+            pending.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e){
+            return false;
+        }
+        catch (ExecutionException e){
+            if (e.getCause() instanceof Exception){
+                throw (Exception)e.getCause();
+            }
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Gives back the edition of a failed insert.
+     * If later editions are assigned, it is given back when they have all failed too.
+     *
+     * @param key String : The USK insert key and docname
+     * @param edition long : The edition of the failed insert
+     */
+    public void rollback(String key, long edition){
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            Editions assigned = get(key);
+            if (assigned == null || edition > assigned.last){
+                return;
+            }
+            assigned.failed.add(edition);
+            while (assigned.failed.remove(assigned.last)){
+                assigned.last--;
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records an edition inserted by a writer that chose it itself,
+     * so the next assigned edition is after it.
+     * USKs not seen before are left to the lookup.
+     *
+     * @param key String : The USK insert key and docname
+     * @param edition long : The inserted edition
+     */
+    public void observe(String key, long edition){
+        ReentrantLock lock = stripe(key);
+        lock.lock();
+        try {
+            Editions assigned = get(key);
+            if (assigned != null && assigned.last < edition){
+                assigned.last = edition;
+                assigned.failed.clear();
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the statistics of the editions
+     *
+     * @return Map<String, Number>
+     */
+    public Map<String, Number> getStats(){
+        int locked = 0;
+        int waiting = 0;
+        for (ReentrantLock stripe : stripes){
+            if (stripe.isLocked()){
+                locked++;
+            }
+            waiting += stripe.getQueueLength();
+        }
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        synchronized (this){
+            stats.put("keys", editions.size());
+        }
+        stats.put("locked_stripes", locked);
+        stats.put("waiting_writers", waiting);
+        return stats;
+    }
+
+    /**
+     * Returns the editions of a USK, marking it as recently used
+     *
+     * @param key String : The USK insert key and docname
+     * @return Editions : The editions or null if the USK has not been seen or was evicted
+     */
+    private synchronized Editions get(String key){
+        return editions.get(key);
+    }
+
+    private ReentrantLock stripe(String key){
+        int hash = key.hashCode();
+        hash ^= hash >>> 16;
+        return stripes[(hash & 0x7fffffff) % stripes.length];
+    }
+}
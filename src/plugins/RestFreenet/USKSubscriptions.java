@@ -0,0 +1,300 @@
+package plugins.RestFreenet;
+
+import freenet.client.async.ClientContext;
+import freenet.client.async.USKCallback;
+import freenet.keys.USK;
+import freenet.support.Ticker;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A cache of the latest editions of USKs fed by subscriptions to the node's USK tracking.
+ * The first request for a USK subscribes to it, the node keeps polling for new editions
+ * and reports them back, so later requests are answered from memory without probing the network.
+ * Requests can wait for an edition newer than the one they know (long-poll).
+ * Subscriptions not asked about for idleTimeout are dropped,
+ * and the least recently used subscription nobody waits on is dropped to make room for a new one.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class USKSubscriptions {
+    private final NodeServices.USKTracker tracker;
+    private final Ticker ticker;
+    private final long idleTimeout; //Time a subscription is kept without requests in ms
+    private final int maxSubscriptions;
+    private final short pollingPriority; //The priority of the node's polling for new editions
+    private final LinkedHashMap<String, Subscription> subscriptions; //USK at edition 0 => subscription, in access order
+    private boolean sweepQueued = false;
+    private boolean closed = false;
+    private long editionsFound = 0;
+    private long evictions = 0;
+
+    /**
+     * Subscription receives the editions of a USK found by the node
+     */
+    private class Subscription implements USKCallback {
+        private final USK usk;
+        private long edition = -1; //The latest edition found, -1 for none yet
+        private int waiters = 0;
+        private boolean active = true;
+        private boolean subscribing = true; //If the node subscription is still being made
+        private long lastUsed;
+
+        private Subscription(USK usk){
+            this.usk = usk;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        @Override
+        public void onFoundEdition(long l, USK key, ClientContext context, boolean metadata, short codec, byte[] data, boolean newKnownGood, boolean newSlotToo) {
+            synchronized (this){
+                if (l <= edition){
+                    return;
+                }
+                edition = l;
+                notifyAll();
+            }
+            synchronized (USKSubscriptions.this){
+                editionsFound++;
+            }
+        }
+
+        @Override
+        public short getPollingPriorityNormal() {
+            return pollingPriority;
+        }
+
+        @Override
+        public short getPollingPriorityProgress() {
+            return pollingPriority;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param tracker NodeServices.USKTracker : Subscribes to the USKs with the node
+     * @param ticker Ticker : Runs the job dropping idle subscriptions
+     * @param idleTimeout long : Time a subscription is kept without requests in ms
+     * @param maxSubscriptions int : The maximum number of subscriptions
+     * @param pollingPriority short : The priority of the node's polling for new editions
+     */
+    public USKSubscriptions(NodeServices.USKTracker tracker, Ticker ticker, long idleTimeout, int maxSubscriptions, short pollingPriority){
+        this.tracker = tracker;
+        this.ticker = ticker;
+        this.idleTimeout = idleTimeout;
+        this.maxSubscriptions = maxSubscriptions;
+        this.pollingPriority = pollingPriority;
+        this.subscriptions = new LinkedHashMap<String, Subscription>(16, 0.75f, true);
+    }
+
+    /**
+     * Returns the latest edition of a USK, subscribing to it if needed.
+     * Waits up to timeout for an edition newer than since.
+     *
+     * @param usk USK : The USK
+     * @param since long : The edition the caller knows, -1 for none
+     * @param timeout long : The maximum time to wait for a newer edition in ms
+     * @return Long : The latest edition, -1 if none has been found yet, or null if there is no room for a new subscription
+     * @throws InterruptedException
+     */
+    public Long await(USK usk, long since, long timeout) throws InterruptedException{
+        long deadline = System.currentTimeMillis() + timeout;
+        while (true){
+            Subscription subscription = get(usk);
+            if (subscription == null){
+                return null;
+            }
+            synchronized (subscription){
+                if (!subscription.active){
+                    /*Dropped before we could wait on it, subscribe again*/
+                    continue;
+                }
+                subscription.waiters++;
+                try {
+                    long remaining = deadline - System.currentTimeMillis();
+                    while (subscription.edition <= since && subscription.active && remaining > 0){
+                        subscription.wait(remaining);
+                        remaining = deadline - System.currentTimeMillis();
+                    }
+                    return subscription.edition;
+                }
+                finally {
+                    subscription.waiters--;
+                    subscription.lastUsed = System.currentTimeMillis();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the subscriptions
+     *
+     * @return Map<String, Number>
+     */
+    public synchronized Map<String, Number> getStats(){
+        int waiters = 0;
+        for (Subscription subscription : subscriptions.values()){
+            synchronized (subscription){
+                waiters += subscription.waiters;
+            }
+        }
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        stats.put("subscriptions", subscriptions.size());
+        stats.put("waiters", waiters);
+        stats.put("editions_found", editionsFound);
+        stats.put("evictions", evictions);
+        return stats;
+    }
+
+    /**
+     * Drops all subscriptions and wakes their waiters
+     */
+    public void close(){
+        List<Subscription> dropped;
+        synchronized (this){
+            closed = true;
+            dropped = new ArrayList<Subscription>(subscriptions.values());
+            subscriptions.clear();
+        }
+        unsubscribe(dropped);
+    }
+
+    /**
+     * Returns the subscription of a USK, creating it if needed
+     */
+    private Subscription get(USK usk){
+        String key = usk.copy(0).getURI().toString();
+        Subscription subscription;
+        List<Subscription> dropped = new ArrayList<Subscription>();
+        synchronized (this){
+            if (closed){
+                return null;
+            }
+            subscription = subscriptions.get(key);
+            if (subscription != null){
+                return subscription;
+            }
+            if (subscriptions.size() >= maxSubscriptions){
+                Subscription evicted = evict();
+                if (evicted == null){
+                    return null;
+                }
+                dropped.add(evicted);
+                evictions++;
+            }
+            /*Shared by all the requests for the USK, so it starts at edition 0 rather than at the edition of the first request*/
+            subscription = new Subscription(usk.copy(0));
+            subscriptions.put(key, subscription);
+            if (!sweepQueued){
+                sweepQueued = true;
+                queueSweep();
+            }
+        }
+        unsubscribe(dropped);
+        boolean subscribed = false;
+        try {
+            /*The node reports the latest edition it already knows right away*/
+            tracker.subscribe(subscription.usk, subscription);
+            subscribed = true;
+        }
+        finally {
+            if (!subscribed){
+                /*Give the slot back, as eviction and sweeping skip a subscription still subscribing*/
+                synchronized (this){
+                    subscriptions.remove(key, subscription);
+                }
+                synchronized (subscription){
+                    subscription.subscribing = false;
+                    subscription.active = false;
+                    subscription.notifyAll();
+                }
+            }
+        }
+        boolean closedMeanwhile;
+        synchronized (subscription){
+            subscription.subscribing = false;
+            closedMeanwhile = !subscription.active;
+        }
+        if (closedMeanwhile){
+            tracker.unsubscribe(subscription.usk, subscription);
+        }
+        return subscription;
+    }
+
+    /**
+     * Removes the least recently used subscription nobody waits on or is subscribing
+     *
+     * @return Subscription : The removed subscription or null if all are in use
+     */
+    private Subscription evict(){
+        Iterator<Subscription> iterator = subscriptions.values().iterator();
+        while (iterator.hasNext()){
+            Subscription subscription = iterator.next();
+            synchronized (subscription){
+                if (subscription.waiters == 0 && !subscription.subscribing){
+                    subscription.active = false;
+                    iterator.remove();
+                    return subscription;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Drops the subscriptions not asked about for idleTimeout
+     */
+    private void sweep(){
+        List<Subscription> dropped = new ArrayList<Subscription>();
+        synchronized (this){
+            long idleSince = System.currentTimeMillis() - idleTimeout;
+            Iterator<Subscription> iterator = subscriptions.values().iterator();
+            while (iterator.hasNext()){
+                Subscription subscription = iterator.next();
+                synchronized (subscription){
+                    if (subscription.waiters == 0 && !subscription.subscribing && subscription.lastUsed < idleSince){
+                        subscription.active = false;
+                        iterator.remove();
+                        dropped.add(subscription);
+                    }
+                }
+            }
+            sweepQueued = !subscriptions.isEmpty() && !closed;
+            if (sweepQueued){
+                queueSweep();
+            }
+        }
+        unsubscribe(dropped);
+    }
+
+    private void queueSweep(){
+        ticker.queueTimedJob(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, Math.max(1000, idleTimeout / 2));
+    }
+
+    /**
+     * Unsubscribes dropped subscriptions and wakes their waiters.
+     * A subscription closed while it is subscribing is unsubscribed by its subscriber once the node subscription is made.
+     */
+    private void unsubscribe(List<Subscription> dropped){
+        for (Subscription subscription : dropped){
+            boolean subscribed;
+            synchronized (subscription){
+                subscription.active = false;
+                subscription.notifyAll();
+                subscribed = !subscription.subscribing;
+            }
+            if (subscribed){
+                tracker.unsubscribe(subscription.usk, subscription);
+            }
+        }
+    }
+}
@@ -0,0 +1,378 @@
+package plugins.RestFreenet;
+
+import freenet.support.Ticker;
+import freenet.support.api.Bucket;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The sessions of resumable uploads.
+ * The data of a session is received in chunks appended to a file on local disk,
+ * each at the offset the client says it starts at, so a client that lost a connection
+ * asks for the current offset and sends the rest instead of everything again.
+ * A complete upload is claimed by an insert, which takes over its file.
+ * Sessions without a chunk for idleTimeout are dropped with their files.
+ *
+ * @author Konstantinos Togias <info@ktogias.gr>
+ */
+public class UploadSessions {
+    public static final int OK = 0;
+    public static final int NOT_FOUND = 1;
+    public static final int BUSY = 2; //Another chunk or the insert of the session is in progress
+    public static final int BAD_OFFSET = 3; //The chunk does not start at the end of the received data
+    public static final int TOO_LARGE = 4; //The chunk goes past the length of the upload or the size limit
+    private static final String SUFFIX = ".upload";
+    private final File dir;
+    private final Ticker ticker;
+    private final long idleTimeout; //Time a session is kept without chunks in ms
+    private final long maxBytes; //The maximum size of an upload
+    private final int maxSessions;
+    private final Map<String, Session> sessions;
+    private boolean sweepQueued = false;
+    private long expired = 0;
+    private long receivedBytes = 0;
+
+    /**
+     * Session is an upload in progress
+     */
+    public static class Session {
+        private final String id;
+        private final File file;
+        private final String contentType; //The content type given when the session was created or null
+        private final long length; //The length given when the session was created or -1
+        private long size = 0; //The bytes received
+        private boolean busy = false;
+        private long lastUsed;
+
+        private Session(String id, File file, String contentType, long length){
+            this.id = id;
+            this.file = file;
+            this.contentType = contentType;
+            this.length = length;
+            this.lastUsed = System.currentTimeMillis();
+        }
+
+        public String getId(){
+            return id;
+        }
+
+        public File getFile(){
+            return file;
+        }
+
+        public String getContentType(){
+            return contentType;
+        }
+
+        public long getLength(){
+            return length;
+        }
+    }
+
+    /**
+     * Constructor
+     *
+     * @param dir File : The directory of the upload files, created if it does not exist. Files left by an earlier run are deleted.
+     * @param ticker Ticker : Runs the job dropping idle sessions
+     * @param idleTimeout long : Time a session is kept without chunks in ms
+     * @param maxBytes long : The maximum size of an upload
+     * @param maxSessions int : The maximum number of sessions
+     * @throws IOException
+     */
+    public UploadSessions(File dir, Ticker ticker, long idleTimeout, long maxBytes, int maxSessions) throws IOException{
+        if (!dir.isDirectory() && !dir.mkdirs()){
+            throw new IOException("Cannot create upload directory "+dir);
+        }
+        File[] files = dir.listFiles();
+        if (files != null){
+            for (File file : files){
+                if (file.getName().endsWith(SUFFIX)){
+                    file.delete();
+                }
+            }
+        }
+        this.dir = dir;
+        this.ticker = ticker;
+        this.idleTimeout = idleTimeout;
+        this.maxBytes = maxBytes;
+        this.maxSessions = maxSessions;
+        this.sessions = new HashMap<String, Session>();
+    }
+
+    /**
+     * Returns the maximum size of an upload
+     *
+     * @return long
+     */
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /**
+     * Creates a session
+     *
+     * @param contentType String : The content type of the data or null
+     * @param length long : The length of the data or -1 if it is not known yet
+     * @return Session : The session or null if the maximum number of sessions is reached
+     * @throws IOException
+     */
+    public Session create(String contentType, long length) throws IOException{
+        String id = UUID.randomUUID().toString();
+        Session session = new Session(id, new File(dir, id+SUFFIX), contentType, length);
+        synchronized (this){
+            if (sessions.size() >= maxSessions){
+                return null;
+            }
+            sessions.put(id, session);
+            if (!sweepQueued){
+                sweepQueued = true;
+                queueSweep();
+            }
+        }
+        try {
+            if (!session.file.createNewFile()){
+                throw new IOException("Upload file "+session.file+" already exists");
+            }
+        }
+        catch (IOException e){
+            synchronized (this){
+                sessions.remove(id);
+            }
+            throw e;
+        }
+        return session;
+    }
+
+    /**
+     * Returns the state of a session
+     *
+     * @param id String : The id of the session
+     * @return Map<String, Object> : uploadId, offset and length if known, or null if the session does not exist
+     */
+    public synchronized Map<String, Object> getState(String id){
+        Session session = sessions.get(id);
+        return session == null ? null : state(session);
+    }
+
+    /**
+     * Appends a chunk to the data of a session
+     *
+     * @param id String : The id of the session
+     * @param offset long : The offset the chunk starts at, which must be the size of the data received
+     * @param chunk Bucket : The chunk
+     * @return int : OK, NOT_FOUND, BUSY, BAD_OFFSET or TOO_LARGE
+     * @throws IOException
+     */
+    public int append(String id, long offset, Bucket chunk) throws IOException{
+        Session session;
+        long size = chunk.size();
+        synchronized (this){
+            session = sessions.get(id);
+            if (session == null){
+                return NOT_FOUND;
+            }
+            if (session.busy){
+                return BUSY;
+            }
+            if (offset != session.size){
+                return BAD_OFFSET;
+            }
+            if (offset + size > (session.length >= 0 ? session.length : maxBytes)){
+                return TOO_LARGE;
+            }
+            session.busy = true;
+        }
+        boolean written = false;
+        try {
+            RandomAccessFile out = new RandomAccessFile(session.file, "rw");
+            try {
+                out.seek(offset);
+                InputStream in = chunk.getInputStream();
+                try {
+                    byte[] buffer = new byte[65536];
+                    int read;
+                    while ((read = in.read(buffer)) != -1){
+                        out.write(buffer, 0, read);
+                    }
+                }
+                finally {
+                    in.close();
+                }
+                written = true;
+            }
+            finally {
+                if (!written){
+                    /*Drop the part of the chunk that was written*/
+                    out.setLength(offset);
+                }
+                out.close();
+            }
+        }
+        finally {
+            synchronized (this){
+                if (written){
+                    session.size += size;
+                    receivedBytes += size;
+                }
+                session.busy = false;
+                session.lastUsed = System.currentTimeMillis();
+            }
+        }
+        return OK;
+    }
+
+    /**
+     * Claims a session for the insert of its data.
+     * No chunks are accepted while the session is claimed.
+     *
+     * @param id String : The id of the session
+     * @return Session : The session, or null if it does not exist or is busy
+     */
+    public synchronized Session claim(String id){
+        Session session = sessions.get(id);
+        if (session == null || session.busy){
+            return null;
+        }
+        session.busy = true;
+        return session;
+    }
+
+    /**
+     * Returns true if all the data of a claimed session has been received
+     *
+     * @param session Session : The session
+     * @return boolean : false if the length of the session is known and more data is expected
+     */
+    public synchronized boolean isComplete(Session session){
+        return session.length < 0 || session.size == session.length;
+    }
+
+    /**
+     * Ends the claim of a session
+     *
+     * @param session Session : The claimed session
+     * @param done boolean : If the session is removed, its file then belongs to the claimer,
+     * otherwise the session takes chunks again
+     */
+    public synchronized void release(Session session, boolean done){
+        if (done){
+            sessions.remove(session.id);
+            return;
+        }
+        session.busy = false;
+        session.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * Removes a session and deletes its file
+     *
+     * @param id String : The id of the session
+     * @return int : OK, NOT_FOUND or BUSY
+     */
+    public int cancel(String id){
+        Session session;
+        synchronized (this){
+            session = sessions.get(id);
+            if (session == null){
+                return NOT_FOUND;
+            }
+            if (session.busy){
+                return BUSY;
+            }
+            sessions.remove(id);
+        }
+        session.file.delete();
+        return OK;
+    }
+
+    /**
+     * Returns the statistics of the sessions
+     *
+     * @return Map<String, Number>
+     */
+    public synchronized Map<String, Number> getStats(){
+        long bytes = 0;
+        for (Session session : sessions.values()){
+            bytes += session.size;
+        }
+        Map<String, Number> stats = new LinkedHashMap<String, Number>();
+        stats.put("sessions", sessions.size());
+        stats.put("bytes", bytes);
+        stats.put("received_bytes", receivedBytes);
+        stats.put("expired", expired);
+        return stats;
+    }
+
+    /**
+     * Removes all sessions and deletes their files
+     */
+    public void close(){
+        List<Session> dropped;
+        synchronized (this){
+            dropped = new ArrayList<Session>();
+            for (Session session : sessions.values()){
+                if (!session.busy){
+                    dropped.add(session);
+                }
+            }
+            sessions.clear();
+        }
+        for (Session session : dropped){
+            session.file.delete();
+        }
+    }
+
+    private static Map<String, Object> state(Session session){
+        Map<String, Object> state = new LinkedHashMap<String, Object>();
+        state.put("uploadId", session.id);
+        state.put("offset", session.size);
+        if (session.length >= 0){
+            state.put("length", session.length);
+        }
+        return state;
+    }
+
+    /**
+     * Drops the sessions without chunks for idleTimeout
+     */
+    private void sweep(){
+        List<Session> dropped = new ArrayList<Session>();
+        synchronized (this){
+            long idleSince = System.currentTimeMillis() - idleTimeout;
+            Iterator<Session> iterator = sessions.values().iterator();
+            while (iterator.hasNext()){
+                Session session = iterator.next();
+                if (!session.busy && session.lastUsed < idleSince){
+                    iterator.remove();
+                    dropped.add(session);
+                    expired++;
+                }
+            }
+            sweepQueued = !sessions.isEmpty();
+            if (sweepQueued){
+                queueSweep();
+            }
+        }
+        for (Session session : dropped){
+            session.file.delete();
+        }
+    }
+
+    private void queueSweep(){
+        ticker.queueTimedJob(new Runnable() {
+            @Override
+            public void run() {
+                sweep();
+            }
+        }, Math.max(1000, idleTimeout / 2));
+    }
+}